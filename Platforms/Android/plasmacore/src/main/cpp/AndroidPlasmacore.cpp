@@ -1,5 +1,6 @@
 #include <jni.h>
 #include <cstdio>
+#include <cstring>
 using namespace std;
 
 #include "RogueProgram.h"
@@ -14,8 +15,10 @@ static JNIEnv* Plasmacore_env;  // updated every Java JNI call
 //-----------------------------------------------------------------------------
 static jclass    jclass_Plasmacore;
 static jfieldID  jfieldID_Plasmacore_ioBuffer;
+static jfieldID  jfieldID_Plasmacore_directMessageBuffer;
 static jmethodID jmethodID_Plasmacore_dispatchDirectMessage;
 static jmethodID jmethodID_Plasmacore_decodeImage;
+static jmethodID jmethodID_Plasmacore_reserveDirectMessageBuffer;
 
 static jclass    jclass_PlasmacoreMessage;
 
@@ -25,6 +28,74 @@ static jfieldID  jfieldID_ByteList_count;
 static jmethodID jmethodID_ByteList_clear;
 static jmethodID jmethodID_ByteList_reserve;
 
+static jclass    jclass_SharedBuffer;
+static jfieldID  jfieldID_SharedBuffer_buffer;
+
+//-----------------------------------------------------------------------------
+// Shared buffers
+//-----------------------------------------------------------------------------
+// Java's SharedBuffer is a direct ByteBuffer with this header followed by the
+// payload. Messages are copied in and out of it with memcpy rather than
+// through JNI array regions and ByteList method calls.
+struct PlasmacoreSharedHeader
+{
+  jint count;     // payload bytes in use
+  jint capacity;  // payload bytes available
+  jint required;  // payload bytes we needed but could not write
+  jint reserved;
+};
+
+#define PLASMACORE_SHARED_HEADER_SIZE 16
+
+// Result bytes that did not fit in Java's buffer; written by nativeFetchPending()
+static RogueByte_List* Plasmacore_pending_bytes;
+
+static bool Plasmacore_read_shared( JNIEnv* env, jobject shared_buffer, RogueByte_List* list )
+{
+  jobject buffer = env->GetObjectField( shared_buffer, jfieldID_SharedBuffer_buffer );
+  RogueByte* shared = (RogueByte*) env->GetDirectBufferAddress( buffer );
+  env->DeleteLocalRef( buffer );
+  if ( !shared ) return false;
+  PlasmacoreSharedHeader* header = (PlasmacoreSharedHeader*) shared;
+
+  int count = header->count;
+  RogueByte_List__clear( list );
+  if (count)
+  {
+    RogueByte_List__reserve__Int32( list, count );
+    memcpy( list->data->as_bytes, shared + PLASMACORE_SHARED_HEADER_SIZE, count );
+  }
+  list->count = count;
+  return true;
+}
+
+static bool Plasmacore_write_shared( JNIEnv* env, jobject shared_buffer, RogueByte_List* list )
+{
+  // Returns true if the bytes were written or are pending a larger buffer.
+  jobject buffer = env->GetObjectField( shared_buffer, jfieldID_SharedBuffer_buffer );
+  RogueByte* shared = (RogueByte*) env->GetDirectBufferAddress( buffer );
+  jlong capacity = env->GetDirectBufferCapacity( buffer ) - PLASMACORE_SHARED_HEADER_SIZE;
+  env->DeleteLocalRef( buffer );
+  if ( !shared ) return false;
+  PlasmacoreSharedHeader* header = (PlasmacoreSharedHeader*) shared;
+
+  if (list->count <= capacity)
+  {
+    memcpy( shared + PLASMACORE_SHARED_HEADER_SIZE, list->data->as_bytes, list->count );
+    header->count = list->count;
+    header->required = 0;
+    Plasmacore_pending_bytes = NULL;
+  }
+  else
+  {
+    // Java grows the buffer and calls nativeFetchPending()
+    header->count = 0;
+    header->required = list->count;
+    Plasmacore_pending_bytes = list;
+  }
+  return true;
+}
+
 static jclass Rogue_find_class( JNIEnv* env, const char* class_name )
 {
   jclass cls = env->FindClass( class_name );
@@ -38,8 +109,11 @@ ROGUE_FN( void, Plasmacore, nativeLaunch )( JNIEnv* env )
 
   jclass_Plasmacore = Rogue_find_class( env, "org/plasmacore/Plasmacore" );
   jfieldID_Plasmacore_ioBuffer    = env->GetStaticFieldID( jclass_Plasmacore, "ioBuffer", "Lorg/plasmacore/ByteList;" );
+  jfieldID_Plasmacore_directMessageBuffer = env->GetStaticFieldID( jclass_Plasmacore, "directMessageBuffer", "Lorg/plasmacore/SharedBuffer;" );
   jmethodID_Plasmacore_dispatchDirectMessage = env->GetStaticMethodID( jclass_Plasmacore, "dispatchDirectMessage", "()Z" );
   jmethodID_Plasmacore_decodeImage           = env->GetStaticMethodID( jclass_Plasmacore, "decodeImage", "()I" );
+  jmethodID_Plasmacore_reserveDirectMessageBuffer =
+    env->GetStaticMethodID( jclass_Plasmacore, "reserveDirectMessageBuffer", "(I)Ljava/nio/ByteBuffer;" );
 
   jclass_PlasmacoreMessage = Rogue_find_class( env, "org/plasmacore/PlasmacoreMessage" );
 
@@ -49,6 +123,10 @@ ROGUE_FN( void, Plasmacore, nativeLaunch )( JNIEnv* env )
   jmethodID_ByteList_clear   = env->GetMethodID( jclass_ByteList, "clear", "()Lorg/plasmacore/ByteList;" );
   jmethodID_ByteList_reserve = env->GetMethodID( jclass_ByteList, "reserve", "(I)Lorg/plasmacore/ByteList;" );
 
+  jclass_SharedBuffer          = Rogue_find_class( env, "org/plasmacore/SharedBuffer" );
+  jfieldID_SharedBuffer_buffer = env->GetFieldID( jclass_SharedBuffer, "buffer", "Ljava/nio/ByteBuffer;" );
+  Plasmacore_pending_bytes = NULL;
+
   try
   {
     Rogue_quit();  // reset global state if necessary
@@ -62,7 +140,16 @@ ROGUE_FN( void, Plasmacore, nativeLaunch )( JNIEnv* env )
   }
 }
 
-ROGUE_FN( jboolean, Plasmacore, nativePostMessages )( JNIEnv* env, jobject static_context, jobject data )
+ROGUE_FN( jboolean, Plasmacore, nativeFetchPending )( JNIEnv* env, jobject static_context, jobject shared_buffer )
+{
+  // Writes result bytes that did not fit during the last nativePostMessages()
+  // or nativeSendMessage() into the now larger buffer.
+  Plasmacore_env = env;
+  if ( !Plasmacore_pending_bytes ) return false;
+  return Plasmacore_write_shared( env, shared_buffer, Plasmacore_pending_bytes );
+}
+
+ROGUE_FN( jboolean, Plasmacore, nativePostMessages )( JNIEnv* env, jobject static_context, jobject shared_buffer )
 {
   Plasmacore_env = env;
   try
@@ -71,33 +158,18 @@ ROGUE_FN( jboolean, Plasmacore, nativePostMessages )( JNIEnv* env, jobject stati
 
     RogueClassPlasmacore__MessageManager* mm =
       (RogueClassPlasmacore__MessageManager*) ROGUE_SINGLETON(Plasmacore__MessageManager);
-    RogueByte_List* list = mm->io_buffer;
-
-    RogueByte_List__clear( list );
-    int count = env->GetIntField( data, jfieldID_ByteList_count );
-    list->count = count;
 
-    jobject bytes = env->GetObjectField( data, jfieldID_ByteList_bytes );
-
-    if (count)
-    {
-      // Copy the Java message bytes to the Rogue list
-      RogueByte_List__reserve__Int32( list, count );
-      env->GetByteArrayRegion( (jbyteArray) bytes, 0, count, (signed char*) list->data->as_bytes );
-    }
+    // Copy the Java message bytes to the Rogue list
+    if ( !Plasmacore_read_shared(env,shared_buffer,mm->io_buffer) ) return false;
 
     // Call Rogue MessageManager.update(), which sends back a reference to another byte
     // list containing messages to us.
-    list = RoguePlasmacore__MessageManager__update( mm );
+    RogueByte_List* list = RoguePlasmacore__MessageManager__update( mm );
 
     if ( !list || !list->count ) return false;
 
-    // Clear the Java ByteList that was sent to us and copy the result in
-    env->CallObjectMethod( bytes, jmethodID_ByteList_clear );
-    env->CallObjectMethod( bytes, jmethodID_ByteList_reserve, list->count );
-    env->SetIntField( bytes, jfieldID_ByteList_count, list->count );
-    env->SetByteArrayRegion( (jbyteArray) bytes, 0, list->count, (signed char*) list->data->as_bytes );
-    return true;
+    // Replace the Java queue contents with the result
+    return Plasmacore_write_shared( env, shared_buffer, list );
   }
   catch (RogueException* err)
   {
@@ -121,7 +193,7 @@ ROGUE_FN( void, Plasmacore, nativeQuit )( JNIEnv* env )
   }
 }
 
-ROGUE_FN( jboolean, Plasmacore, nativeSendMessage )( JNIEnv* env, jobject static_context, jobject data )
+ROGUE_FN( jboolean, Plasmacore, nativeSendMessage )( JNIEnv* env, jobject static_context, jobject shared_buffer )
 {
   Plasmacore_env = env;
   try
@@ -129,26 +201,16 @@ ROGUE_FN( jboolean, Plasmacore, nativeSendMessage )( JNIEnv* env, jobject static
     RogueClassPlasmacore__MessageManager* mm =
       (RogueClassPlasmacore__MessageManager*) ROGUE_SINGLETON(Plasmacore__MessageManager);
     RogueByte_List* list = mm->direct_message_buffer;
-    RogueByte_List__clear( list );
-
-    int count = env->GetIntField( data, jfieldID_ByteList_count );
-    list->count = count;
-
-    jobject bytes = env->GetObjectField( data, jfieldID_ByteList_bytes );
 
     // Copy the Java message bytes to the Rogue list
-    RogueByte_List__reserve__Int32( list, count );
-    env->GetByteArrayRegion( (jbyteArray) bytes, 0, count, (signed char*) list->data->as_bytes );
+    if ( !Plasmacore_read_shared(env,shared_buffer,list) ) return false;
 
     if (RoguePlasmacore__MessageManager__receive_message(mm))
     {
       // direct_message_buffer has been filled with result bytes.
-      // Copy those into the ByteList that was sent to us.
-      env->CallObjectMethod( bytes, jmethodID_ByteList_clear );
-      env->CallObjectMethod( bytes, jmethodID_ByteList_reserve, list->count );
-      env->SetIntField( bytes, jfieldID_ByteList_count, list->count );
-      env->SetByteArrayRegion( (jbyteArray) bytes, 0, list->count, (signed char*) list->data->as_bytes );
-      return true;
+      // Copy those into the buffer that was sent to us (re-reading its
+      // ByteBuffer, which a nested message may have grown).
+      return Plasmacore_write_shared( env, shared_buffer, list );
     }
     else
     {
@@ -164,6 +226,36 @@ ROGUE_FN( jboolean, Plasmacore, nativeSendMessage )( JNIEnv* env, jobject static
   return false;
 }
 
+ROGUE_FN( jboolean, Plasmacore, nativeSendMessages )( JNIEnv* env, jobject static_context, jobject shared_buffer )
+{
+  // Like nativeSendMessage() but for a batch of size-prefixed messages; the
+  // buffer is replaced with their size-prefixed replies.
+  Plasmacore_env = env;
+  try
+  {
+    RogueClassPlasmacore__MessageManager* mm =
+      (RogueClassPlasmacore__MessageManager*) ROGUE_SINGLETON(Plasmacore__MessageManager);
+    RogueByte_List* list = mm->direct_message_buffer;
+
+    if ( !Plasmacore_read_shared(env,shared_buffer,list) ) return false;
+
+    if (RoguePlasmacore__MessageManager__receive_messages(mm))
+    {
+      return Plasmacore_write_shared( env, shared_buffer, list );
+    }
+    else
+    {
+      return false;
+    }
+  }
+  catch (RogueException* err)
+  {
+    RogueException__display( err );
+    return false;
+  }
+  return false;
+}
+
 //-----------------------------------------------------------------------------
 // Rogue Plasmacore
 //-----------------------------------------------------------------------------
@@ -220,29 +312,33 @@ extern "C" RogueString* Plasmacore_get_application_data_folder()
 bool PlasmacoreMessage_send( RogueByte_List* rogue_bytes )
 {
   JNIEnv* env = Plasmacore_env;
-  jobject ioBuffer = env->GetStaticObjectField( jclass_Plasmacore, jfieldID_Plasmacore_ioBuffer );
-
-  // Copy message bytes into Java's ioBuffer
-  env->CallObjectMethod( ioBuffer, jmethodID_ByteList_clear );
-  env->CallObjectMethod( ioBuffer, jmethodID_ByteList_reserve, rogue_bytes->count );
-  env->SetIntField( ioBuffer, jfieldID_ByteList_count, rogue_bytes->count );
-  jobject bytes = env->GetObjectField( ioBuffer, jfieldID_ByteList_bytes );
-  env->SetByteArrayRegion( (jbyteArray) bytes, 0, rogue_bytes->count, (signed char*) rogue_bytes->data->as_bytes );
+  jobject shared_buffer = env->GetStaticObjectField( jclass_Plasmacore, jfieldID_Plasmacore_directMessageBuffer );
+  jobject buffer = env->GetObjectField( shared_buffer, jfieldID_SharedBuffer_buffer );
 
-  if (env->CallStaticBooleanMethod(jclass_Plasmacore, jmethodID_Plasmacore_dispatchDirectMessage))
+  // Copy message bytes into Java's directMessageBuffer, only calling into Java
+  // when it needs to grow.
+  jlong capacity = env->GetDirectBufferCapacity( buffer ) - PLASMACORE_SHARED_HEADER_SIZE;
+  if (rogue_bytes->count > capacity)
   {
-    jobject bytes = env->GetObjectField( ioBuffer, jfieldID_ByteList_bytes ); // this ref may have changed
-    RogueInt32 count = env->GetIntField( ioBuffer, jfieldID_ByteList_count );
-
-    RogueByte_List__clear( rogue_bytes );
-    RogueByte_List__reserve__Int32( rogue_bytes, count );
-    rogue_bytes->count = count;
-
-    env->GetByteArrayRegion( (jbyteArray) bytes, 0, count, (signed char*) rogue_bytes->data->as_bytes );
-    return true;
+    env->DeleteLocalRef( buffer );
+    buffer = env->CallStaticObjectMethod( jclass_Plasmacore, jmethodID_Plasmacore_reserveDirectMessageBuffer, rogue_bytes->count );
   }
-  else
+
+  RogueByte* shared = (RogueByte*) env->GetDirectBufferAddress( buffer );
+  env->DeleteLocalRef( buffer );
+  bool has_reply = false;
+  if (shared)
   {
-    return false;
+    memcpy( shared + PLASMACORE_SHARED_HEADER_SIZE, rogue_bytes->data->as_bytes, rogue_bytes->count );
+    ((PlasmacoreSharedHeader*)shared)->count = rogue_bytes->count;
+
+    if (env->CallStaticBooleanMethod(jclass_Plasmacore, jmethodID_Plasmacore_dispatchDirectMessage))
+    {
+      // The ByteBuffer may have been replaced while dispatching
+      has_reply = Plasmacore_read_shared( env, shared_buffer, rogue_bytes );
+    }
   }
+
+  env->DeleteLocalRef( shared_buffer );
+  return has_reply;
 }
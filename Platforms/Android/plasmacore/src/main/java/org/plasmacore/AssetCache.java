@@ -0,0 +1,394 @@
+package org.plasmacore;
+
+import android.content.res.AssetManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class AssetCache
+{
+  // - Bundled assets are extracted into Plasmacore.cacheFolder so Rogue can
+  //   open them as ordinary files. find() (Plasmacore.find_asset and
+  //   find_assets) extracts them one at a time on demand.
+  // - buildIndex() refreshes the cache (see below) and then records the files
+  //   and folders already in it so find() can answer from memory; copyAsset()
+  //   adds each file it extracts. Both run on a worker thread. find() waits
+  //   for the refresh and checks the filesystem until the index is ready.
+  // - Indexed assets are trusted without a stat. Android may clear the cache
+  //   folder while the app runs, so find() checks that the Assets folder still
+  //   exists, at most once per PURGE_CHECK_INTERVAL, and forgets the index if
+  //   it is gone so assets are extracted again.
+  // - extractAll() extracts everything up front on a pool with one thread per
+  //   core; Plasmacore.launch() calls it when Plasmacore.extractAssetsAtLaunch
+  //   is set. Assets that already exist are skipped. The assets to extract
+  //   come from MANIFEST; walking the bundle instead is slow and also finds
+  //   folders such as images/ and webkit/ that Android adds, so that is only
+  //   done for an app built without a manifest.
+  // - The AssetCompiler writes MANIFEST next to the bundled assets: one
+  //   "<content hash> <filepath>" line per asset. refresh() compares it with
+  //   the copy saved in the cache by the last refresh, deletes cached assets
+  //   whose hash changed or that are no longer bundled, and saves the new copy.
+  //   Deleted assets are extracted again on next use, so an update only costs
+  //   i/o for what changed. A cache without a saved manifest predates it and
+  //   is cleared.
+  // - Progress is posted as PROGRESS_MESSAGE with "extracted", "total" and
+  //   "finished" (a Logical), so Rogue can show a loading bar. All progress
+  //   comes from the extractor thread, at most every PROGRESS_INTERVAL ms, so
+  //   the messages arrive in order with "finished" last.
+
+  // GLOBAL PROPERTIES
+  final static public String PROGRESS_MESSAGE = "Plasmacore.on_asset_extraction_progress";
+  final static public int    PROGRESS_INTERVAL = 100;  // ms
+  final static public int    PURGE_CHECK_INTERVAL = 1000;  // ms
+  final static public String MANIFEST = "AssetManifest.txt";
+  final static int           MANIFEST_VERSION = 1;
+  final static List<String>  FRAMEWORK_FOLDERS = Arrays.asList( "images", "sounds", "webkit" );  // added by Android
+
+  static long startTime = System.currentTimeMillis();
+
+  static AtomicBoolean isExtracting = new AtomicBoolean();
+
+  // Absolute paths. 'missing' only holds assets that aren't bundled at all.
+  static Set<String> files   = Collections.newSetFromMap( new ConcurrentHashMap<String,Boolean>() );
+  static Set<String> folders = Collections.newSetFromMap( new ConcurrentHashMap<String,Boolean>() );
+  static Set<String> missing = Collections.newSetFromMap( new ConcurrentHashMap<String,Boolean>() );
+  static volatile boolean isIndexed;
+  static volatile CountDownLatch refreshed;  // set by buildIndex()
+  static volatile long purgeCheckTime;
+
+  // GLOBAL METHODS
+  static public void buildIndex()
+  {
+    // Called by Plasmacore.configure(); refreshes and indexes the cache on a
+    // worker thread.
+    final CountDownLatch latch = new CountDownLatch( 1 );
+    refreshed = latch;
+    Plasmacore.backgroundExecutor().execute(
+        new Runnable()
+        {
+          public void run()
+          {
+            try
+            {
+              refresh();
+            }
+            finally
+            {
+              latch.countDown();
+            }
+            _index( new File(Plasmacore.cacheFolder + "/Assets") );
+            isIndexed = true;
+          }
+        }
+    );
+  }
+
+  static public boolean extractAll()
+  {
+    // Starts extracting on a background thread and returns immediately.
+    // Returns false if an extraction is already running.
+    if ( !isExtracting.compareAndSet(false,true) ) return false;
+
+    Plasmacore.postQueue.setPolicy( PROGRESS_MESSAGE, PostQueue.POLICY_COALESCE );
+    Thread thread = new Thread(
+        new Runnable()
+        {
+          public void run()
+          {
+            try
+            {
+              _extractAll();
+            }
+            finally
+            {
+              isExtracting.set( false );
+            }
+          }
+        },
+        "Plasmacore extractor"
+    );
+    thread.setDaemon( true );
+    thread.start();
+    return true;
+  }
+
+  static public String find( String filepath )
+  {
+    // Returns the extracted location of an asset such as "Assets/Images/Image.png",
+    // extracting it first if necessary, or null if there is no such asset.
+    _awaitRefresh();
+    _checkPurged();
+    String resolved = Plasmacore.cacheFolder + "/" + filepath;
+    if (files.contains(resolved))   return resolved;
+    if (missing.contains(resolved)) return null;
+
+    File file = new File( resolved );
+    File folder = file.getParentFile();
+    if ( !isIndexed && file.exists() )
+    {
+      files.add( resolved );
+      return resolved;
+    }
+
+    for (int attempt=1; ; ++attempt)
+    {
+      if ( !folders.contains(folder.getPath()) )
+      {
+        if ( !folder.exists() ) folder.mkdirs();
+        folders.add( folder.getPath() );
+      }
+
+      // copyAsset() adds assets that aren't bundled to 'missing'
+      if (Plasmacore.copyAsset(filepath,file)) return resolved;
+      if (attempt == 2 || missing.contains(resolved) || folder.exists()) return null;
+      folders.remove( folder.getPath() );  // purged since it was recorded
+    }
+  }
+
+  static public boolean isExtracting()
+  {
+    return isExtracting.get();
+  }
+
+  static void refresh()
+  {
+    // Called on a worker thread by buildIndex().
+    HashMap<String,String> bundled;
+    try
+    {
+      bundled = _readManifest( Plasmacore.activity.getAssets().open(MANIFEST) );
+    }
+    catch (IOException err)
+    {
+      return;  // no manifest; cached assets are kept as they are
+    }
+    if (bundled == null)
+    {
+      Plasmacore.logError( "Unsupported " + MANIFEST + " version." );
+      return;
+    }
+
+    File cachedManifest = new File( Plasmacore.cacheFolder + "/" + MANIFEST );
+    HashMap<String,String> cached = null;
+    try
+    {
+      if (cachedManifest.exists()) cached = _readManifest( new FileInputStream(cachedManifest) );
+    }
+    catch (IOException ignore)
+    {
+      // treated as missing
+    }
+
+    if (cached != null && cached.equals(bundled)) return;
+
+    if (cached == null)
+    {
+      _delete( new File(Plasmacore.cacheFolder + "/Assets") );
+    }
+    else
+    {
+      int removed = 0;
+      for (Map.Entry<String,String> entry : cached.entrySet())
+      {
+        if (entry.getValue().equals(bundled.get(entry.getKey()))) continue;
+        if (new File(Plasmacore.cacheFolder + "/Assets/" + entry.getKey()).delete()) ++removed;
+      }
+      Plasmacore.log( "Removed " + removed + " changed or unused cached assets." );
+    }
+
+    // Saved last, so an interrupted refresh is redone on the next launch
+    if ( !Plasmacore.copyAsset(MANIFEST,cachedManifest) ) Plasmacore.logError( "Unable to save " + MANIFEST + "." );
+  }
+
+  static void _extractAll()
+  {
+    ArrayList<String> filepaths = _bundledFilepaths();
+
+    final int total = filepaths.size();
+    final AtomicInteger extracted = new AtomicInteger();
+
+    int threadCount = Math.max( 1, Runtime.getRuntime().availableProcessors() );
+    ExecutorService pool = Executors.newFixedThreadPool( threadCount );
+    for (final String filepath : filepaths)
+    {
+      pool.execute(
+          new Runnable()
+          {
+            public void run()
+            {
+              if (find("Assets/"+filepath) == null) Plasmacore.logError( "Unable to extract asset " + filepath );
+              extracted.incrementAndGet();
+            }
+          }
+      );
+    }
+
+    pool.shutdown();
+    try
+    {
+      int reported = -1;
+      while ( !pool.awaitTermination(PROGRESS_INTERVAL,TimeUnit.MILLISECONDS) )
+      {
+        int n = extracted.get();
+        if (n != reported) _postProgress( reported=n, total, false );
+      }
+    }
+    catch (InterruptedException err)
+    {
+      pool.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+
+    _postProgress( extracted.get(), total, true );
+  }
+
+  static void _awaitRefresh()
+  {
+    CountDownLatch latch = refreshed;
+    if (latch == null) return;
+    try
+    {
+      latch.await();
+    }
+    catch (InterruptedException err)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  static ArrayList<String> _bundledFilepaths()
+  {
+    ArrayList<String> filepaths = new ArrayList<String>();
+    AssetManager assets = Plasmacore.activity.getAssets();
+    try
+    {
+      HashMap<String,String> bundled = _readManifest( assets.open(MANIFEST) );
+      if (bundled != null)
+      {
+        filepaths.addAll( bundled.keySet() );
+        return filepaths;
+      }
+    }
+    catch (IOException err)
+    {
+      // no manifest
+    }
+
+    try
+    {
+      _list( assets, "", filepaths );
+    }
+    catch (IOException err)
+    {
+      Plasmacore.logError( "Unable to list bundled assets: " + err );
+    }
+    return filepaths;
+  }
+
+  static void _checkPurged()
+  {
+    long now = System.currentTimeMillis();
+    if (now - purgeCheckTime < PURGE_CHECK_INTERVAL) return;
+    purgeCheckTime = now;
+
+    if (folders.isEmpty() || new File(Plasmacore.cacheFolder + "/Assets").exists()) return;
+    files.clear();
+    folders.clear();
+    Plasmacore.log( "Asset cache was cleared; assets will be extracted again." );
+  }
+
+  static void _delete( File file )
+  {
+    File[] children = file.listFiles();
+    if (children != null)
+    {
+      for (File child : children) _delete( child );
+    }
+    file.delete();
+  }
+
+  static void _index( File folder )
+  {
+    File[] children = folder.listFiles();
+    if (children == null) return;
+
+    folders.add( folder.getPath() );
+    for (File child : children)
+    {
+      if (child.isDirectory())
+      {
+        _index( child );
+      }
+      else if (child.getName().endsWith(".part"))
+      {
+        // Unfinished copy; delete it if it was left by an earlier run
+        if (child.lastModified() + 2000 < startTime) child.delete();
+      }
+      else
+      {
+        files.add( child.getPath() );
+      }
+    }
+  }
+
+  static void _list( AssetManager assets, String folder, ArrayList<String> filepaths ) throws IOException
+  {
+    // Adds the path of every file under 'folder'. AssetManager can't tell files
+    // from folders, so an entry without children is taken to be a file.
+    String[] names = assets.list( folder );
+    if (names == null) return;
+    for (String name : names)
+    {
+      if (folder.length() == 0 && (name.equals(MANIFEST) || FRAMEWORK_FOLDERS.contains(name))) continue;
+      String filepath = (folder.length() == 0) ? name : folder + "/" + name;
+      String[] children = assets.list( filepath );
+      if (children == null || children.length == 0) filepaths.add( filepath );
+      else                                           _list( assets, filepath, filepaths );
+    }
+  }
+
+  static HashMap<String,String> _readManifest( InputStream in ) throws IOException
+  {
+    // Returns filepath -> hash, or null if the manifest version is unsupported.
+    HashMap<String,String> hashes = new HashMap<String,String>();
+    BufferedReader reader = new BufferedReader( new InputStreamReader(in,"UTF-8"), 16*1024 );
+    try
+    {
+      boolean hasVersion = false;
+      for (String line=reader.readLine(); line!=null; line=reader.readLine())
+      {
+        if (line.length() == 0 || line.startsWith("#")) continue;
+        int space = line.indexOf( ' ' );
+        if (space == -1) continue;
+        if (line.startsWith("version "))
+        {
+          if ( !line.substring(space+1).trim().equals(String.valueOf(MANIFEST_VERSION)) ) return null;
+          hasVersion = true;
+          continue;
+        }
+        hashes.put( line.substring(space+1), line.substring(0,space) );
+      }
+      return hasVersion ? hashes : null;
+    }
+    finally
+    {
+      reader.close();
+    }
+  }
+
+  static void _postProgress( int extracted, int total, boolean finished )
+  {
+    PlasmacoreMessage m = PlasmacoreMessage.create( PROGRESS_MESSAGE );
+    m.set( "extracted", extracted );
+    m.set( "total", total );
+    m.set( "finished", finished );
+    m.post();
+  }
+}
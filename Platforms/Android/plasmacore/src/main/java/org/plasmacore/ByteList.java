@@ -1,10 +1,14 @@
 package org.plasmacore;
 
+import java.nio.ByteBuffer;
+
 public class ByteList
 {
   public byte[] bytes;
   public int    count;
 
+  ByteBuffer buffer;  // big-endian view of 'bytes'; see buffer()
+
   public ByteList()
   {
     this( 128 );
@@ -29,16 +33,21 @@ public class ByteList
   public ByteList add( byte[] bytes, int offset, int n )
   {
     reserve( n );
-    byte[] this_bytes = this.bytes;
+    System.arraycopy( bytes, offset, this.bytes, count, n );
     count += n;
-    int count = this.count;
-    for (int i=offset+n; --i>=offset; )
-    {
-      this_bytes[ --count ] = bytes[ i ];
-    }
     return this;
   }
 
+  public ByteBuffer buffer()
+  {
+    // Returns a big-endian ByteBuffer over 'bytes', rewrapping only when the
+    // array has been replaced. Use absolute get/put only - the view's
+    // position and limit are not maintained.
+    ByteBuffer result = buffer;
+    if (result == null || result.array() != bytes) buffer = result = ByteBuffer.wrap( bytes );
+    return result;
+  }
+
   public int capacity()
   {
     return bytes.length;
@@ -63,10 +72,7 @@ public class ByteList
       {
         count = Math.min( count, maxCapacity );
         byte[] newData = new byte[ maxCapacity ];
-        for (int i=count; --i>=0; )
-        {
-          newData[i] = bytes[i];
-        }
+        System.arraycopy( bytes, 0, newData, 0, count );
         bytes = newData;
       }
     }
@@ -75,12 +81,14 @@ public class ByteList
 
   public int readInt32( int startIndex )
   {
-    if (startIndex + 4 > count) return 0;
-    int result = ((int)bytes[ startIndex ]) << 24;
-    result |= ((int)bytes[ startIndex+1 ]) << 16;
-    result |= ((int)bytes[ startIndex+2 ]) << 8;
-    result |= ((int)bytes[ startIndex+3 ]);
-    return result;
+    if (startIndex < 0 || startIndex + 4 > count) return 0;
+    return buffer().getInt( startIndex );
+  }
+
+  public long readInt64( int startIndex )
+  {
+    if (startIndex < 0 || startIndex + 8 > count) return 0;
+    return buffer().getLong( startIndex );
   }
 
   public ByteList reserve( int additional )
@@ -91,11 +99,8 @@ public class ByteList
     int newCapacity = bytes.length * 2;
     if (requiredCapacity > newCapacity) newCapacity = requiredCapacity;
 
-    byte[] newData = new byte[ requiredCapacity ];
-    for (int i=count; --i>=0; )
-    {
-      newData[i] = bytes[i];
-    }
+    byte[] newData = new byte[ newCapacity ];
+    System.arraycopy( bytes, 0, newData, 0, count );
     bytes = newData;
 
     return this;
@@ -117,11 +122,16 @@ public class ByteList
   public ByteList writeInt32( int value )
   {
     reserve( 4 );
-    bytes[ count   ] = (byte) (value >> 24);
-    bytes[ count+1 ] = (byte) (value >> 16);
-    bytes[ count+2 ] = (byte) (value >> 8);
-    bytes[ count+3 ] = (byte) value;
+    buffer().putInt( count, value );
     count += 4;
     return this;
   }
+
+  public ByteList writeInt64( long value )
+  {
+    reserve( 8 );
+    buffer().putLong( count, value );
+    count += 8;
+    return this;
+  }
 }
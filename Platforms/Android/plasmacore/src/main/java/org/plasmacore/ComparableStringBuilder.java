@@ -25,6 +25,7 @@ class ComparableStringBuilder implements CharSequence, Comparable<String>
   {
     count = 0;
     hash = 0;
+    continuationCount = 0;
     isValid = true;
     return this;
   }
@@ -61,6 +62,38 @@ class ComparableStringBuilder implements CharSequence, Comparable<String>
     return 1;
   }
 
+  public ComparableStringBuilder decodeUTF8( byte[] src, int offset, int n )
+  {
+    // Appends n UTF-8 bytes. ASCII runs are copied and hashed in a tight loop;
+    // other bytes go through writeUTF8Byte().
+    reserve( n );  // never more UTF-16 chars than UTF-8 bytes
+    char[] characters = this.characters;
+    int count = this.count;
+    int hash = this.hash;
+    int limit = offset + n;
+    for (int i=offset; i<limit; ++i)
+    {
+      int b = src[ i ];
+      if (b >= 0 && continuationCount == 0)
+      {
+        characters[ count++ ] = (char) b;
+        hash = ((hash << 5) - hash) + b;
+      }
+      else
+      {
+        this.count = count;
+        this.hash = hash;
+        writeUTF8Byte( b );
+        characters = this.characters;
+        count = this.count;
+        hash = this.hash;
+      }
+    }
+    this.count = count;
+    this.hash = hash;
+    return this;
+  }
+
   public boolean equals( Object other )
   {
     if (other instanceof CharSequence) return equals( (CharSequence) other );
@@ -0,0 +1,67 @@
+package org.plasmacore;
+
+import java.util.*;
+
+class HitCounter
+{
+  // - Counts lookup hits for StringInterner and UTF8Interner without a shared
+  //   write: each thread increments its own cell and count() adds them up, so
+  //   the lock-free lookup path never contends on a counter.
+  // - Like MessagePool's per-thread pools, a cell is only written by its
+  //   owning thread and is read without synchronization, so count() is
+  //   approximate while lookups are running.
+  // - Cells of threads that have died are folded into 'retired' and dropped.
+
+  static class Cell
+  {
+    final Thread owner = Thread.currentThread();
+    long count;  // written only by 'owner'
+  }
+
+  // PROPERTIES
+  final ArrayList<Cell> cells = new ArrayList<Cell>();
+  long retired;  // guarded by 'cells'
+
+  final ThreadLocal<Cell> cell = new ThreadLocal<Cell>()
+  {
+    protected Cell initialValue()
+    {
+      Cell result = new Cell();
+      synchronized (cells)
+      {
+        prune();
+        cells.add( result );
+      }
+      return result;
+    }
+  };
+
+  // METHODS
+  long count()
+  {
+    synchronized (cells)
+    {
+      prune();
+      long result = retired;
+      for (Cell c : cells) result += c.count;
+      return result;
+    }
+  }
+
+  void increment()
+  {
+    ++cell.get().count;
+  }
+
+  void prune()
+  {
+    // Called while holding 'cells'. A dead owner has made its final count visible.
+    for (int i=cells.size(); --i>=0; )
+    {
+      Cell c = cells.get( i );
+      if (c.owner.isAlive()) continue;
+      retired += c.count;
+      cells.remove( i );
+    }
+  }
+}
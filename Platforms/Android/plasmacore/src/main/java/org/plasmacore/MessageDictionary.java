@@ -0,0 +1,104 @@
+package org.plasmacore;
+
+import java.util.*;
+
+class MessageDictionary
+{
+  // - Shared table of well-known message type names and argument keys.
+  // - Java proposes the table in Application.on_launch ("message_dictionary",
+  //   newline-separated); Rogue answers with Plasmacore.on_message_dictionary
+  //   ("count") once it can decode and encode the first 'count' entries.
+  // - With the v2 encoding a known name is written as a negative name count,
+  //   -id, in place of its length-prefixed UTF-8. IDs start at 1 since a count
+  //   of 0 is the empty reply type name.
+
+  // GLOBAL PROPERTIES
+  final static String[] DEFAULT_NAMES =
+  {
+    "Application.on_launch", "Application.on_save", "Application.on_start", "Application.on_stop",
+    "Display.allow_orientation", "Display.density", "Display.is_tablet", "Display.on_graphics_lost",
+    "Display.on_key_event", "Display.on_pointer_event", "Display.on_render", "Display.on_text_event",
+    "Display.safe_insets", "Plasmacore.find_asset",
+    "Sound.create", "Sound.duration", "Sound.is_playing", "Sound.pause", "Sound.play", "Sound.position",
+    "Sound.set_position", "Sound.set_volume", "Sound.unload", "SoundManager.is_loading",
+    "allow_landscape", "allow_portrait", "bottom", "cancelled", "character", "density",
+    "display_height", "display_name", "display_width", "duration", "filepath", "id", "index",
+    "is_loading", "is_music", "is_playing", "is_press", "is_repeat", "is_repeating", "is_tablet",
+    "keycode", "left", "position", "right", "syscode", "top", "type", "volume", "x", "y"
+  };
+
+  // PROPERTIES
+  public String[] names;      // names[id]; names[0] is unused
+  int[]           typeIDs;    // MessageTypes ID for names[id] once it has one
+  public HashMap<String,Integer> ids = new HashMap<String,Integer>();
+  public int      encodeCount;  // IDs 1..encodeCount may be written; 0 until negotiated
+
+  // METHODS
+  public MessageDictionary()
+  {
+    this( DEFAULT_NAMES );
+  }
+
+  public MessageDictionary( String[] names )
+  {
+    this.names = new String[ names.length + 1 ];
+    this.names[0] = "";
+    typeIDs = new int[ names.length + 1 ];
+    Arrays.fill( typeIDs, -1 );
+    for (int i=0; i<names.length; ++i)
+    {
+      String name = PlasmacoreMessage.consolidate( names[i] );
+      this.names[ i+1 ] = name;
+      if ( !ids.containsKey(name) ) ids.put( name, i+1 );
+    }
+  }
+
+  public int count()
+  {
+    return names.length - 1;
+  }
+
+  public int id( String name )
+  {
+    // Returns the ID to encode 'name' with or 0 if it must be written out.
+    if (encodeCount == 0) return 0;
+    Integer id = ids.get( name );
+    if (id == null) return 0;
+    int result = id;
+    return (result <= encodeCount) ? result : 0;
+  }
+
+  public String name( int id )
+  {
+    if (id <= 0 || id >= names.length) return "";
+    return names[ id ];
+  }
+
+  public int typeID( int id )
+  {
+    if (id <= 0 || id >= names.length) return 0;
+    int result = typeIDs[ id ];
+    if (result < 0)
+    {
+      result = MessageTypes.find( names[id] );
+      if (result >= 0) typeIDs[ id ] = result;
+    }
+    return result;
+  }
+
+  public void setEncodeCount( int count )
+  {
+    encodeCount = Math.max( 0, Math.min(count,count()) );
+  }
+
+  public String toString()
+  {
+    StringBuilder buffer = new StringBuilder();
+    for (int i=1; i<names.length; ++i)
+    {
+      if (i > 1) buffer.append( '\n' );
+      buffer.append( names[i] );
+    }
+    return buffer.toString();
+  }
+}
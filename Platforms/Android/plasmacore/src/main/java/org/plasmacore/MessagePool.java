@@ -0,0 +1,173 @@
+package org.plasmacore;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class MessagePool
+{
+  // - Recycled PlasmacoreMessage objects for PlasmacoreMessage.create()/recycle().
+  // - Each thread has a small private stack that needs no synchronization.
+  // - Overflow goes to a shared lock-free stack linked through
+  //   PlasmacoreMessage.nextPooled. Pushes use compare-and-set; a thread that
+  //   runs dry takes the whole shared stack at once with getAndSet(null), which
+  //   avoids the ABA problem of popping single nodes.
+  // - Messages beyond the configured caps are left to the garbage collector.
+  // - The pool of a thread that has died is dropped along with its messages;
+  //   its hit and miss counts are kept in running totals.
+
+  // GLOBAL PROPERTIES
+  static public int threadCapacity      = 32;    // pooled messages kept per thread
+  static public int sharedCapacity      = 256;   // pooled messages kept in the shared stack
+  static public int maxRetainedCapacity = 1024;  // data bytes a pooled message may keep
+
+  final static AtomicReference<PlasmacoreMessage> sharedStack = new AtomicReference<PlasmacoreMessage>();
+  final static AtomicInteger sharedCount = new AtomicInteger();
+  final static ArrayList<MessagePool> threadPools = new ArrayList<MessagePool>();
+  static long retiredHits;    // guarded by threadPools
+  static long retiredMisses;  // guarded by threadPools
+
+  final static ThreadLocal<MessagePool> threadPool = new ThreadLocal<MessagePool>()
+  {
+    protected MessagePool initialValue()
+    {
+      MessagePool pool = new MessagePool();
+      synchronized (threadPools)
+      {
+        prune();
+        threadPools.add( pool );
+      }
+      return pool;
+    }
+  };
+
+  // GLOBAL METHODS
+  static PlasmacoreMessage acquire()
+  {
+    // Returns a recycled message or null if the caller should allocate one.
+    MessagePool pool = threadPool.get();
+    if (pool.count == 0) pool.refill();
+    if (pool.count == 0)
+    {
+      ++pool.misses;
+      return null;
+    }
+
+    ++pool.hits;
+    PlasmacoreMessage m = pool.messages[ --pool.count ];
+    pool.messages[ pool.count ] = null;
+    return m;
+  }
+
+  static void release( PlasmacoreMessage m )
+  {
+    MessagePool pool = threadPool.get();
+    if (pool.count < threadCapacity)
+    {
+      if (pool.count == pool.messages.length)
+      {
+        pool.messages = Arrays.copyOf( pool.messages, Math.max(threadCapacity,pool.count*2) );
+      }
+      pool.messages[ pool.count++ ] = m;
+      return;
+    }
+
+    if (sharedCount.get() >= sharedCapacity) return;  // let it be collected
+    sharedCount.incrementAndGet();
+    push( m, m );
+  }
+
+  static public int count()
+  {
+    // Approximate number of messages currently pooled across all threads.
+    int result = sharedCount.get();
+    synchronized (threadPools)
+    {
+      prune();
+      for (MessagePool pool : threadPools) result += pool.count;
+    }
+    return result;
+  }
+
+  static public long hits()
+  {
+    long result;
+    synchronized (threadPools)
+    {
+      prune();
+      result = retiredHits;
+      for (MessagePool pool : threadPools) result += pool.hits;
+    }
+    return result;
+  }
+
+  static public long misses()
+  {
+    long result;
+    synchronized (threadPools)
+    {
+      prune();
+      result = retiredMisses;
+      for (MessagePool pool : threadPools) result += pool.misses;
+    }
+    return result;
+  }
+
+  static void prune()
+  {
+    // Called while holding threadPools. A dead owner has made its final counts visible.
+    for (int i=threadPools.size(); --i>=0; )
+    {
+      MessagePool pool = threadPools.get( i );
+      if (pool.owner.isAlive()) continue;
+      retiredHits   += pool.hits;
+      retiredMisses += pool.misses;
+      threadPools.remove( i );
+    }
+  }
+
+  static void push( PlasmacoreMessage first, PlasmacoreMessage last )
+  {
+    // Pushes the chain first..last (linked by nextPooled) onto the shared stack.
+    for (;;)
+    {
+      PlasmacoreMessage head = sharedStack.get();
+      last.nextPooled = head;
+      if (sharedStack.compareAndSet(head,first)) return;
+    }
+  }
+
+  // PROPERTIES
+  final Thread owner = Thread.currentThread();
+  PlasmacoreMessage[] messages = new PlasmacoreMessage[ 8 ];
+  int  count;
+  long hits;    // written only by the owning thread
+  long misses;
+
+  // METHODS
+  void refill()
+  {
+    PlasmacoreMessage cur = sharedStack.getAndSet( null );
+    if (cur == null) return;
+
+    int taken = 0;
+    int limit = Math.max( 1, threadCapacity );
+    while (cur != null && count < limit)
+    {
+      if (count == messages.length) messages = Arrays.copyOf( messages, count*2 );
+      PlasmacoreMessage next = cur.nextPooled;
+      cur.nextPooled = null;
+      messages[ count++ ] = cur;
+      cur = next;
+      ++taken;
+    }
+    sharedCount.addAndGet( -taken );
+
+    if (cur != null)
+    {
+      // Return the remainder
+      PlasmacoreMessage last = cur;
+      while (last.nextPooled != null) last = last.nextPooled;
+      push( cur, last );
+    }
+  }
+}
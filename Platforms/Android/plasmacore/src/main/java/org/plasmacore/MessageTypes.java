@@ -0,0 +1,54 @@
+package org.plasmacore;
+
+import java.util.*;
+
+class MessageTypes
+{
+  // - Dense integer IDs for message type names; Plasmacore.dispatch() indexes
+  //   its listener table with them. ID 0 is the reply type "".
+  // - IDs are only assigned by id(), which setMessageListener() calls, so the
+  //   table is bounded by the number of listener types. The dispatch path uses
+  //   find(), which never inserts and returns -1 for a type without an ID.
+  // - Each name is pinned in PlasmacoreMessage.interner so it keeps a single
+  //   canonical String even when the interner would otherwise evict it.
+  // - Decoded messages cache their ID next to the name itself (UTF8Interner
+  //   entries, MessageDictionary slots). Only IDs >= 0 are cached, so a type
+  //   that gains a listener later is picked up on its next lookup.
+
+  // GLOBAL PROPERTIES
+  static volatile HashMap<String,Integer> ids = new HashMap<String,Integer>();  // copy-on-write
+  static String[] names = new String[ 16 ];  // guarded by MessageTypes.class
+  static int      count;
+
+  static
+  {
+    id( "" );
+  }
+
+  // GLOBAL METHODS
+  static int find( String type )
+  {
+    Integer existing = ids.get( type );
+    return (existing == null) ? -1 : existing;
+  }
+
+  synchronized static int id( String type )
+  {
+    Integer existing = ids.get( type );
+    if (existing != null) return existing;
+
+    String canonical = PlasmacoreMessage.interner.pin( type );
+    if (count == names.length) names = Arrays.copyOf( names, count*2 );
+    names[ count ] = canonical;
+    HashMap<String,Integer> newIDs = new HashMap<String,Integer>( ids );
+    newIDs.put( canonical, count );
+    ids = newIDs;
+    return count++;
+  }
+
+  synchronized static String name( int id )
+  {
+    if (id < 0 || id >= count) return "";
+    return names[ id ];
+  }
+}
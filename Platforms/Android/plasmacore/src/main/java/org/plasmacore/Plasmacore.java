@@ -5,21 +5,33 @@ import android.content.pm.ActivityInfo;
 import android.graphics.*;
 import android.util.*;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Plasmacore
 {
   static public boolean  isLaunched;
   static public boolean  isConfigured;
-  static public ByteList inputMessageQueue   = new ByteList( 1024 );
-  static public ByteList outputMessageQueue  = new ByteList( 1024 );
-  static public ByteList ioBuffer = new ByteList( 128 );  // used for direct message i/o and bitmap decoding
+  static public boolean  useMessageDictionary = true;  // propose compact v2 names at launch
+  static public boolean  extractAssetsAtLaunch;        // see AssetCache.extractAll()
+  static public PostQueue    postQueue = new PostQueue();  // posted messages waiting for sendPostedMessages()
+  static public SharedBuffer inputMessageQueue   = new SharedBuffer( 1024 );
+  static public SharedBuffer directMessageBuffer = new SharedBuffer( 128 );  // used for direct message i/o
+  static public ByteList ioBuffer = new ByteList( 128 );  // used for bitmap decoding
+  static ThreadLocal<byte[]> copyBuffer = new ThreadLocal<byte[]>()  // used by copyAsset()
+  {
+    protected byte[] initialValue()
+    {
+      return new byte[ 64*1024 ];
+    }
+  };
+  static ByteList queueCopy = new ByteList( 0 );  // used when a shared buffer has no backing array
   static public String   mutex = new String( "mutex" );
 
   static public Activity activity;
@@ -31,7 +43,13 @@ public class Plasmacore
 
   static public PlasmacoreSoundManager soundManager;
 
-  static public HashMap<String,PlasmacoreMessageListener> messageListeners = new HashMap<String,PlasmacoreMessageListener>();
+  // Listeners indexed by message type ID (see PlasmacoreMessage.typeID());
+  // replaced as a whole under listenerLock whenever a listener changes.
+  static volatile ListenerSlot[] messageListeners = new ListenerSlot[ 0 ];
+  static String listenerLock = new String( "listenerLock" );
+  static public int    backgroundThreadCount = 2;  // workers for setBackgroundListener()
+  static ExecutorService backgroundExecutor;     // created on first use
+  static private final HashMap<Integer,PlasmacoreMessageListener> replyCallbacks = new HashMap<Integer,PlasmacoreMessageListener>();  // synchronized
 
   static
   {
@@ -52,7 +70,10 @@ public class Plasmacore
         m.set( "application_data_folder", applicationDataFolder );
         m.set( "user_data_folder", userDataFolder );
         m.set( "cache_folder", cacheFolder );
+        if (useMessageDictionary) m.set( "message_dictionary", PlasmacoreMessage.dictionary.toString() );
         m.post();
+
+        if (extractAssetsAtLaunch) AssetCache.extractAll();
       }
     }
   }
@@ -85,37 +106,89 @@ public class Plasmacore
 
     userDataFolder = applicationDataFolder;
 
+    AssetCache.buildIndex();
+
     soundManager = new PlasmacoreSoundManager();
 
     setMessageListener(
+        "",  // reply to a postRSVP() message
+        new PlasmacoreMessageListener()
+        {
+          public void on( PlasmacoreMessage m )
+          {
+            PlasmacoreMessageListener callback;
+            synchronized (replyCallbacks)
+            {
+              callback = replyCallbacks.remove( m.messageID );
+            }
+            if (callback != null) callback.on( m );
+          }
+        }
+    );
+
+    // Lookups may extract the asset, so posted requests (Plasmacore.find_asset()
+    // and preload_assets() in Rogue) run on a worker; Plasmacore.asset_filepath()
+    // still gets its reply directly for assets that weren't preloaded.
+    setBackgroundListener(
         "Plasmacore.find_asset",
         new PlasmacoreMessageListener()
         {
           public void on( PlasmacoreMessage m )
           {
+            // Always reply so a post_rsvp() callback fires; "filepath" is only
+            // set when the asset was found.
+            PlasmacoreMessage reply = m.reply();
             try
             {
-              String filepath = m.getString( "filepath" );  // will be e.g.: Assets/Images/Image.png
-
-              int last_slash = filepath.lastIndexOf( '/' );
-              File destFolder = new File( (last_slash==-1)?cacheFolder:cacheFolder+"/"+filepath.substring(0,last_slash) );
-              if ( !destFolder.exists() ) destFolder.mkdirs();
-
-              String resolvedFilepath = cacheFolder + "/" + filepath;
-              File file = new File( resolvedFilepath );
-
               // If a requested asset is not in the cache folder then we attempt
               // to find and copy it from bundled assets.
-              if (file.exists() || Plasmacore.copyAsset(filepath,file))
-              {
-                m.reply().set( "filepath", resolvedFilepath );
-                return;
-              }
+              String resolvedFilepath = AssetCache.find( m.getString("filepath") );  // e.g.: Assets/Images/Image.png
+              if (resolvedFilepath != null) reply.set( "filepath", resolvedFilepath );
             }
             catch (Exception failed)
             {
-              // no response
+              // reply without a filepath
+            }
+          }
+        }
+    );
+
+    setBackgroundListener(
+        "Plasmacore.find_assets",
+        new PlasmacoreMessageListener()
+        {
+          public void on( PlasmacoreMessage m )
+          {
+            // Batch form of find_asset: newline-separated filepaths in, and the
+            // resolved filepaths out in the same order, blank where not found.
+            StringBuilder resolved = new StringBuilder();
+            String[] filepaths = m.getString( "filepaths" ).split( "\n", -1 );
+            for (int i=0; i<filepaths.length; ++i)
+            {
+              if (i > 0) resolved.append( '\n' );
+              try
+              {
+                String resolvedFilepath = AssetCache.find( filepaths[i] );
+                if (resolvedFilepath != null) resolved.append( resolvedFilepath );
+              }
+              catch (Exception failed)
+              {
+                // left blank
+              }
             }
+            m.reply().set( "filepaths", resolved.toString() );
+          }
+        }
+    );
+
+    setMessageListener(
+        "Plasmacore.on_message_dictionary",
+        new PlasmacoreMessageListener()
+        {
+          public void on( PlasmacoreMessage m )
+          {
+            // Rogue can now decode the first 'count' dictionary names
+            PlasmacoreMessage.dictionary.setEncodeCount( m.getInt("count") );
           }
         }
     );
@@ -191,21 +264,26 @@ public class Plasmacore
 
   static boolean copyAsset( String filepath, File toFile )
   {
+    // Streams the asset into a temporary file next to 'toFile' and renames it
+    // into place, so a copy cut short by a crash or kill never looks like a
+    // cached asset. Safe to call from several threads at once.
     if (filepath.startsWith("Assets/"))
     {
       filepath = filepath.substring( 7 );
     }
 
-    BufferedInputStream infile = null;
-    BufferedOutputStream outfile = null;
+    File tempFile = new File( toFile.getPath() + "." + Thread.currentThread().getId() + ".part" );
+    InputStream infile = null;
+    FileOutputStream outfile = null;
     try
     {
-      infile  = new BufferedInputStream( activity.getAssets().open(filepath), 1024 );
-      outfile = new BufferedOutputStream( new FileOutputStream(toFile), 1024 );
+      infile  = activity.getAssets().open( filepath );
+      outfile = new FileOutputStream( tempFile );
 
-      for (int ch=infile.read(); ch!=-1; ch=infile.read())
+      byte[] buffer = copyBuffer.get();
+      for (int n=infile.read(buffer); n!=-1; n=infile.read(buffer))
       {
-        outfile.write( ch );
+        outfile.write( buffer, 0, n );
       }
 
       infile.close();
@@ -214,10 +292,17 @@ public class Plasmacore
       outfile.close();
       outfile = null;
 
-      return true;
+      // Another thread may have finished the same asset first
+      if (tempFile.renameTo(toFile) || toFile.exists())
+      {
+        tempFile.delete();
+        AssetCache.files.add( toFile.getPath() );
+        return true;
+      }
     }
     catch (IOException err)
     {
+      if (infile == null && err instanceof FileNotFoundException) AssetCache.missing.add( toFile.getPath() );
       try
       {
         if (infile != null)  infile.close();
@@ -227,36 +312,104 @@ public class Plasmacore
       {
       }
     }
+    tempFile.delete();
     return false;
   }
 
   static public boolean dispatchDirectMessage()
   {
-    PlasmacoreMessage m = PlasmacoreMessage.create( ioBuffer );
+    // The native layer has written the message into directMessageBuffer.
+    // Copy it out since listeners may send() through the same buffer.
+    PlasmacoreMessage m = PlasmacoreMessage.create( directMessageBuffer.loadHeader() );
     dispatch( m );
     if (m._reply != null)
     {
-      ioBuffer.clear().add( m._reply.data );
+      directMessageBuffer.clear().add( m._reply.data ).flushHeader();
       m._reply.isSent = true;
-      m.recycle();
+      if ( !m.isRetained ) m.recycle();
       return true;
     }
     else
     {
-      m.recycle();
+      if ( !m.isRetained ) m.recycle();
       return false;
     }
   }
 
-  static public void dispatch( PlasmacoreMessage m )
+  static ExecutorService backgroundExecutor()
   {
-    PlasmacoreMessageListener listener = messageListeners.get( m.type );
-    if (listener != null)
+    synchronized (listenerLock)
     {
-      listener.on( m );
+      if (backgroundExecutor == null)
+      {
+        backgroundExecutor = Executors.newFixedThreadPool(
+            Math.max( 1, backgroundThreadCount ),
+            new ThreadFactory()
+            {
+              public Thread newThread( Runnable r )
+              {
+                Thread thread = new Thread( r, "Plasmacore worker" );
+                thread.setDaemon( true );
+                thread.setPriority( Thread.NORM_PRIORITY - 1 );
+                return thread;
+              }
+            }
+        );
+      }
+      return backgroundExecutor;
     }
   }
 
+  static public void dispatch( PlasmacoreMessage m )
+  {
+    // Calls the listener for 'm' on this thread - background listeners too,
+    // since a direct message needs its reply before send() returns.
+    ListenerSlot slot = listenerSlot( m );
+    if (slot != null) slot.listener.on( m );
+  }
+
+  static void dispatchPosted( PlasmacoreMessage m )
+  {
+    // Background listeners are handed a copy of 'm' so the queue can be reused.
+    ListenerSlot slot = listenerSlot( m );
+    if (slot == null) return;
+    if (slot.inBackground) dispatchInBackground( slot.listener, PlasmacoreMessage.create(m.data.bytes,m.dataOffset,m.data.count-m.dataOffset) );
+    else                   slot.listener.on( m );
+  }
+
+  static void dispatchInBackground( final PlasmacoreMessageListener listener, final PlasmacoreMessage m )
+  {
+    // Runs 'listener' on a worker thread. A reply is posted back with the
+    // original messageID and reaches Rogue on a later frame.
+    backgroundExecutor().execute(
+        new Runnable()
+        {
+          public void run()
+          {
+            try
+            {
+              listener.on( m );
+              PlasmacoreMessage reply = m._reply;
+              m._reply = null;
+              if (reply != null)
+              {
+                if (reply.isSent) reply.recycle();
+                else              post( reply );
+              }
+            }
+            catch (RuntimeException err)
+            {
+              logError( "Background listener for " + m.type + " failed: " + err );
+            }
+            finally
+            {
+              if ( !m.isRetained ) m.recycle();
+            }
+          }
+        }
+    );
+  }
+
   static public int decodeImage()
   {
     // Decodes image bytes that have been placed in ioBuffer.
@@ -283,6 +436,20 @@ public class Plasmacore
     }
   }
 
+  static ListenerSlot listenerSlot( PlasmacoreMessage m )
+  {
+    int typeID = m.typeID();
+    ListenerSlot[] listeners = messageListeners;
+    if (typeID < 0 || typeID >= listeners.length) return null;
+
+    ListenerSlot slot = listeners[ typeID ];
+    if (slot == null) return null;
+
+    // Type names are pinned, so this is an identity match in practice
+    if (slot.type != m.type && !slot.type.equals(m.type)) return null;
+    return slot;
+  }
+
   static public void log( String message )
   {
     Log.i( "Plasmacore", message );
@@ -310,13 +477,43 @@ public class Plasmacore
 
   static public void post( PlasmacoreMessage m )
   {
-    synchronized (mutex)
+    post( m, postQueue.laneOf(m.type) );
+  }
+
+  static public void post( PlasmacoreMessage m, int lane )
+  {
+    // Doesn't take 'mutex', so posting never waits on native frame processing.
+    // 'lane' is one of PostQueue.LANE_INPUT, LANE_CONTROL or LANE_BULK.
+    m.detach();
+    postQueue.add( m.data, lane, postQueue.policyOf(m.type) );
+    m.isSent = true;
+    m.recycle();
+  }
+
+  static public void postRSVP( PlasmacoreMessage m, PlasmacoreMessageListener callback )
+  {
+    // Posts 'm' with the next batch. 'callback' is called on the GL thread
+    // when Rogue replies, during sendPostedMessages() dispatch. The reply is
+    // only valid during the callback unless the callback retain()s it.
+    synchronized (replyCallbacks)
+    {
+      replyCallbacks.put( m.messageID, callback );
+    }
+    post( m );
+  }
+
+  static public PlasmacoreReply postRSVP( PlasmacoreMessage m )
+  {
+    PlasmacoreReply result = new PlasmacoreReply( m.messageID );
+    postRSVP( m, result );
+    return result;
+  }
+
+  static public void cancelRSVP( int messageID )
+  {
+    synchronized (replyCallbacks)
     {
-      outputMessageQueue.reserve( m.data.count + 4 );
-      outputMessageQueue.writeInt32( m.data.count );
-      outputMessageQueue.add( m.data );
-      m.isSent = true;
-      m.recycle();
+      replyCallbacks.remove( messageID );
     }
   }
 
@@ -324,11 +521,12 @@ public class Plasmacore
   {
     synchronized (mutex)
     {
-      ioBuffer.clear().add( m.data );
-      if (nativeSendMessage(ioBuffer))
+      m.detach();
+      directMessageBuffer.clear().add( m.data ).flushHeader();
+      if (nativeSendMessage(directMessageBuffer) && receive(directMessageBuffer))
       {
-        // ioBuffer message has been replace with reply.
-        return PlasmacoreMessage.create( ioBuffer );
+        // directMessageBuffer message has been replaced with reply.
+        return PlasmacoreMessage.create( directMessageBuffer );
       }
       else
       {
@@ -337,14 +535,132 @@ public class Plasmacore
     }
   }
 
+  static public ByteBuffer reserveDirectMessageBuffer( int count )
+  {
+    // Called by the native layer when a direct message won't fit.
+    return directMessageBuffer.clear().reserve( count ).buffer;
+  }
+
+  static boolean receive( SharedBuffer buffer )
+  {
+    // Picks up the header written by the native layer. If the result did not
+    // fit, grows the buffer and has the native layer write the pending bytes.
+    buffer.loadHeader();
+    if (buffer.required > 0)
+    {
+      buffer.clear().reserve( buffer.required ).flushHeader();
+      if ( !nativeFetchPending(buffer) ) return false;
+      buffer.loadHeader();
+    }
+    return (buffer.count > 0);
+  }
+
+  static public PlasmacoreMessage[] sendAll( PlasmacoreMessage... messages )
+  {
+    // Sends several messages to Rogue in a single native call. Returns the
+    // replies matched by messageID, in the same order as 'messages', with null
+    // for any message that was not replied to.
+    PlasmacoreMessage[] replies = new PlasmacoreMessage[ messages.length ];
+    synchronized (mutex)
+    {
+      directMessageBuffer.clear();
+      for (PlasmacoreMessage m : messages)
+      {
+        m.detach();
+        directMessageBuffer.writeInt32( m.data.count ).add( m.data );
+      }
+
+      if (nativeSendMessages(directMessageBuffer.flushHeader()) && receive(directMessageBuffer))
+      {
+        byte[] bytes = directMessageBuffer.array();
+        int offset = directMessageBuffer.arrayOffset();
+        if (bytes == null)
+        {
+          bytes = directMessageBuffer.copyTo( queueCopy ).bytes;
+          offset = 0;
+        }
+
+        int readPos = 0;
+        int next = 0;
+        while (readPos < directMessageBuffer.count)
+        {
+          int replySize = directMessageBuffer.readInt32( readPos );
+          readPos += 4;
+          PlasmacoreMessage reply = PlasmacoreMessage.create( bytes, offset+readPos, replySize );
+          readPos += replySize;
+
+          // Replies come back in order, so the search starts after the last match
+          int index = -1;
+          for (int i=0; i<messages.length; ++i)
+          {
+            int j = (next + i) % messages.length;
+            if (messages[j].messageID == reply.messageID && replies[j] == null)
+            {
+              index = j;
+              break;
+            }
+          }
+
+          if (index == -1)
+          {
+            reply.recycle();
+          }
+          else
+          {
+            replies[ index ] = reply;
+            next = index + 1;
+          }
+        }
+      }
+    }
+    return replies;
+  }
+
+  static public void setBackgroundListener( String type, PlasmacoreMessageListener listener )
+  {
+    // Like setMessageListener(), but posted messages of this type are handled
+    // on a worker thread so the GL thread never waits on them. Use for slow
+    // listeners such as file i/o; they must not touch GL or UI state.
+    setMessageListener( type, listener, true );
+  }
+
   static public void setMessageListener( String type, PlasmacoreMessageListener listener )
   {
-    messageListeners.put( type, listener );
+    setMessageListener( type, listener, false );
+  }
+
+  static void setMessageListener( String type, PlasmacoreMessageListener listener, boolean inBackground )
+  {
+    // Safe to call from any thread.
+    if (listener == null)
+    {
+      removeMessageListener( type );
+      return;
+    }
+
+    int typeID = MessageTypes.id( type );
+    synchronized (listenerLock)
+    {
+      ListenerSlot[] listeners = messageListeners;
+      if (typeID >= listeners.length) listeners = Arrays.copyOf( listeners, Math.max(typeID+1,listeners.length*2) );
+      else                            listeners = listeners.clone();
+      listeners[ typeID ] = new ListenerSlot( MessageTypes.name(typeID), listener, inBackground );
+      messageListeners = listeners;
+    }
   }
 
   static public void removeMessageListener( String type )
   {
-    messageListeners.put( type, null );
+    int typeID = MessageTypes.find( type );
+    if (typeID < 0) return;
+    synchronized (listenerLock)
+    {
+      ListenerSlot[] listeners = messageListeners;
+      if (typeID >= listeners.length || listeners[typeID] == null) return;
+      listeners = listeners.clone();
+      listeners[ typeID ] = null;
+      messageListeners = listeners;
+    }
   }
 
   static public void sendPostedMessages()
@@ -353,29 +669,54 @@ public class Plasmacore
 
     synchronized (mutex)
     {
-      ByteList temp = inputMessageQueue.clear();
-      inputMessageQueue = outputMessageQueue;
-      outputMessageQueue = temp;
+      postQueue.drainTo( inputMessageQueue.clear() );
 
-      if (nativePostMessages(inputMessageQueue))
+      if (nativePostMessages(inputMessageQueue.flushHeader()) && receive(inputMessageQueue))
       {
+        byte[] bytes = inputMessageQueue.array();
+        int offset = inputMessageQueue.arrayOffset();
+        if (bytes == null)
+        {
+          bytes = inputMessageQueue.copyTo( queueCopy ).bytes;
+          offset = 0;
+        }
+
         int readPos = 0;
         while (readPos < inputMessageQueue.count)
         {
           int messageSize = inputMessageQueue.readInt32( readPos );
           readPos += 4;
-          PlasmacoreMessage m = PlasmacoreMessage.create( inputMessageQueue.bytes, readPos, messageSize );
+          // Listeners receive a view over the queue; only retained messages
+          // are copied before the queue is reused.
+          PlasmacoreMessage m = PlasmacoreMessage.createView( bytes, offset+readPos, messageSize );
           readPos += messageSize;
-          dispatch( m );
-          m.recycle();
+          dispatchPosted( m );
+          if (m.isRetained) m.detach();
+          else              m.recycle();
         }
       }
+      inputMessageQueue.clear().shrink( postQueue.targetCapacity );
     }
   }
 
+  native static boolean nativeFetchPending( SharedBuffer buffer );
   native static void    nativeLaunch();
-  native static boolean nativePostMessages( ByteList queue );
+  native static boolean nativePostMessages( SharedBuffer queue );
   native static void    nativeQuit();
-  native static boolean nativeSendMessage( ByteList data );
-}
+  native static boolean nativeSendMessage( SharedBuffer data );
+  native static boolean nativeSendMessages( SharedBuffer data );
+
+  static class ListenerSlot
+  {
+    final String type;  // canonical, pinned type name
+    final PlasmacoreMessageListener listener;
+    final boolean inBackground;  // see setBackgroundListener()
 
+    ListenerSlot( String type, PlasmacoreMessageListener listener, boolean inBackground )
+    {
+      this.type = type;
+      this.listener = listener;
+      this.inBackground = inBackground;
+    }
+  }
+}
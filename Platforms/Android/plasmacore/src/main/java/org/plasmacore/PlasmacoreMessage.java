@@ -5,6 +5,12 @@ package org.plasmacore;
 //
 // Communication mechanism between Plasmacore and Native Layer (Java).
 //
+// A message created with createView() decodes directly over a window of a
+// larger buffer (such as Plasmacore.inputMessageQueue) instead of copying it.
+// A view is valid until it is recycled or the underlying buffer is reused;
+// call retain() to keep a view beyond the dispatch call, or detach() to give
+// it its own copy of the data. Writing to a view detaches it automatically.
+//
 // post()ing a message adds it to a queue that is sent en mass during the next
 // update or before a send().
 //
@@ -32,15 +38,25 @@ package org.plasmacore;
 //     arg_data       : Byte[arg_data_size]
 //   endWhile
 //
+// Names (v2)
+//   When a MessageDictionary has been negotiated (see Plasmacore.launch), a
+//   type name or arg name may instead be written as a single negative Int32
+//   name count, -id, referring to entry 'id' of the shared dictionary.
+//
 // Data Types
 //   DATA_TYPE_REAL64 = 1   # value:Int64 (Real64.integer_bits stored)
 //   DATA_TYPE_INT64  = 2   # high:Int32, low:Int32
 //   DATA_TYPE_INT32  = 3   # value:Int32
 //   DATA_TYPE_BYTE   = 4   # value:Byte
+//   DATA_TYPE_INT32_ARRAY  = 5   # values:Int32[arg_data_size/4]
+//   DATA_TYPE_REAL32_ARRAY = 6   # values:Int32[arg_data_size/4] (Real32.integer_bits stored)
+//   DATA_TYPE_REAL64_ARRAY = 7   # values:Int64[arg_data_size/8] (Real64.integer_bits stored)
 //
 //==============================================================================
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PlasmacoreMessage
 {
@@ -49,60 +65,43 @@ public class PlasmacoreMessage
   final static int DATA_TYPE_INT64  = 2;
   final static int DATA_TYPE_INT32  = 3;
   final static int DATA_TYPE_BYTE   = 4;
+  final static int DATA_TYPE_INT32_ARRAY  = 5;
+  final static int DATA_TYPE_REAL32_ARRAY = 6;
+  final static int DATA_TYPE_REAL64_ARRAY = 7;
 
   // GLOBAL PROPERTIES
-  static int nextMessageID = 1;
-  static HashMap<Comparable<String>,String> consolidationTable = new HashMap<Comparable<String>,String>();
-  static ArrayList<PlasmacoreMessage> messagePool = new ArrayList<PlasmacoreMessage>();
+  static AtomicInteger nextMessageID = new AtomicInteger( 1 );
+  static public StringInterner interner = new StringInterner( 1024 );  // canonical type names and interned values
+  static public UTF8Interner utf8Interner = new UTF8Interner( interner, 1024 );  // canonical names by UTF-8 bytes
   static String mutex = new String( "mutex" );
+  static public boolean internStrings;  // getString() returns consolidated values when true
+  static MessageDictionary dictionary = new MessageDictionary();
 
   // GLOBAL METHODS
   static String consolidate( String text )
   {
-    synchronized (mutex)
-    {
-      String result = consolidationTable.get( text );
-      if (result != null) return result;
-      consolidationTable.put( text, text );
-      return text;
-    }
+    return interner.intern( text );
   }
 
   static String consolidate( ComparableStringBuilder builder )
   {
-    synchronized (mutex)
-    {
-      String result = consolidationTable.get( builder );
-      if (result != null) return result;
-      String text = builder.toString();
-      consolidationTable.put( text, text );
-      return text;
-    }
+    return interner.intern( builder );
   }
 
   static PlasmacoreMessage create()
   {
-    synchronized (mutex)
-    {
-      int n = messagePool.size();
-      if (n == 0) return new PlasmacoreMessage();
-      return messagePool.remove( n - 1 ).reset();
-    }
+    PlasmacoreMessage m = MessagePool.acquire();
+    if (m == null) return new PlasmacoreMessage();
+    return m.reset();
   }
 
   static PlasmacoreMessage create( String type ) {
-    synchronized (mutex)
-    {
-      return create( type, nextMessageID++ );
-    }
+    return create( type, nextMessageID.getAndIncrement() );
   }
 
   static PlasmacoreMessage create( String type, double timestamp )
   {
-    synchronized (mutex)
-    {
-      return create( type, nextMessageID++, timestamp );
-    }
+    return create( type, nextMessageID.getAndIncrement(), timestamp );
   }
 
   static PlasmacoreMessage create( int replyToMessageID )
@@ -125,6 +124,13 @@ public class PlasmacoreMessage
     return create( data.bytes, 0, data.count );
   }
 
+  static PlasmacoreMessage create( SharedBuffer buffer )
+  {
+    byte[] bytes = buffer.array();
+    if (bytes != null) return create( bytes, buffer.arrayOffset(), buffer.count );
+    return create( buffer.copyTo(new ByteList(buffer.count)) );
+  }
+
   static PlasmacoreMessage create( byte[] data )
   {
     return create( data, 0, data.length );
@@ -135,19 +141,39 @@ public class PlasmacoreMessage
     return create().init( data, offset, n );
   }
 
+  static PlasmacoreMessage createView( byte[] data, int offset, int n )
+  {
+    return create().initView( data, offset, n );
+  }
+
   // PROPERTIES
   public String   type;
+  int             _typeID = -1;  // see typeID()
   public int      messageID;
   public double   timestamp;
   public ByteList data = new ByteList();
+  public int      dataOffset; // start of this message within data.bytes (nonzero only for views)
   public int      position; // read position (data.count is write position)
   public int      argStartPosition;
   public boolean  isSent;
   public boolean  isRecycled;
+  public boolean  isView;
+  public boolean  isRetained;
   public PlasmacoreMessage _reply;
 
+  PlasmacoreMessage nextPooled;  // MessagePool shared stack link
+
   ComparableStringBuilder builder = new ComparableStringBuilder();
   UTF8Writer utf8Writer = new UTF8Writer();
+  ByteList   ownedData = data;
+  ByteList   viewData  = new ByteList( 0 );
+
+  // Argument index built lazily by _seek(): the canonical name of each argument
+  // and the position of its arg_data_type byte.
+  String[] argNames     = new String[ 8 ];
+  int[]    argPositions = new int[ 8 ];
+  int      argIndexCount;     // number of indexed arguments
+  int      argIndexPosition;  // data position up to which arguments have been indexed
 
   // METHODS
   public PlasmacoreMessage()
@@ -158,12 +184,17 @@ public class PlasmacoreMessage
 
   public PlasmacoreMessage reset()
   {
+    _releaseView();
     data.clear();
     position = 0;
     isSent = false;
     isRecycled = false;
+    isRetained = false;
     _reply = null;
+    _typeID = -1;
     argStartPosition = 0;
+    argIndexCount = 0;
+    argIndexPosition = 0;
     builder.clear();
     return this;
   }
@@ -175,11 +206,12 @@ public class PlasmacoreMessage
     this.messageID = messageID;
     this.timestamp = timestamp;
 
-    _writeString( type );
+    _writeName( type );
     _writeInt32( messageID );
     _writeReal64( timestamp );
 
     argStartPosition = data.count;
+    argIndexPosition = argStartPosition;
 
     return this;
   }
@@ -194,14 +226,54 @@ public class PlasmacoreMessage
     return this;
   }
 
+  public PlasmacoreMessage initView( byte[] data, int offset, int n )
+  {
+    // The caller must keep data[offset..offset+n) unchanged until this message
+    // is recycled or detach()ed.
+    reset();
+
+    viewData.bytes = data;
+    viewData.count = offset + n;
+    this.data = viewData;
+    dataOffset = offset;
+    position = offset;
+    isView = true;
+    initFromData();
+
+    return this;
+  }
+
+  public PlasmacoreMessage detach()
+  {
+    // Converts a view into a message that owns a copy of its data.
+    if ( !isView ) return this;
+
+    int offset = dataOffset;
+    ownedData.clear().add( viewData.bytes, offset, viewData.count - offset );
+    _releaseView();
+
+    position -= offset;
+    argStartPosition -= offset;
+    argIndexPosition -= offset;
+    int[] positions = argPositions;
+    for (int i=argIndexCount; --i>=0; )
+    {
+      positions[ i ] -= offset;
+    }
+    return this;
+  }
+
   public void initFromData()
   {
-    // Assumes that reset() has been called and that 'data' has been configured.
-    type = consolidate( _readString() );
+    // Assumes that reset() has been called and that 'data' has been configured
+    // with 'position' at the start of the message.
+    _readType();
     messageID = _readInt32();
     timestamp = _readReal64();
 
     argStartPosition = position;
+    argIndexCount = 0;
+    argIndexPosition = argStartPosition;
   }
 
   public boolean getBoolean( String key )
@@ -231,10 +303,12 @@ public class PlasmacoreMessage
   public byte[] getBytes( String key )
   {
     if ( !_seek(key) ) return new byte[0];
-    _readByte();
-    int count = _readInt32();
-    byte[] result = new byte[ count ];
-    getBytes( key, result, 0, count );
+
+    _readByte(); // skip type
+    int n = _availableBytes( _readInt32() );
+    byte[] result = new byte[ n ];
+    System.arraycopy( data.bytes, position, result, 0, n );
+    position += n;
     return result;
   }
 
@@ -242,19 +316,38 @@ public class PlasmacoreMessage
   {
     if ( !_seek(key) ) return 0;
 
-    int arg_type = _readByte();
-    int arg_size = _readInt32();
-    if (arg_size == 0) return 0;
+    _readByte(); // skip type
+    int n = Math.min( _availableBytes(_readInt32()), max );
+    if (n <= 0) return 0;
 
-    int n = Math.min( arg_size, max );
-    for (int i=0; i<n; ++i)
-    {
-      buffer[ i+offset ] = (byte)_readByte();
-    }
+    System.arraycopy( data.bytes, position, buffer, offset, n );
+    position += n;
+    return n;
+  }
+
+  public int getBytes( String key, ByteBuffer buffer )
+  {
+    // Copies as much of the argument as fits into the buffer's remaining space,
+    // advancing the buffer's position. Returns the number of bytes copied.
+    if ( !_seek(key) ) return 0;
 
+    _readByte(); // skip type
+    int n = Math.min( _availableBytes(_readInt32()), buffer.remaining() );
+    if (n <= 0) return 0;
+
+    buffer.put( data.bytes, position, n );
+    position += n;
     return n;
   }
 
+  public int getArrayCount( String key )
+  {
+    // Returns the number of elements in an Int32/Real32/Real64 array argument.
+    if ( !_seek(key) ) return 0;
+    int arg_type = _readByte();
+    return _arrayCount( arg_type, _readInt32() );
+  }
+
   public double getDouble( String key )
   {
     if ( !_seek(key) ) return 0;
@@ -274,6 +367,74 @@ public class PlasmacoreMessage
     return 0;
   }
 
+  public double[] getDoubles( String key )
+  {
+    double[] result = new double[ getArrayCount(key) ];
+    getDoubles( key, result, 0, result.length );
+    return result;
+  }
+
+  public int getDoubles( String key, double[] buffer, int offset, int max )
+  {
+    if ( !_seek(key) ) return 0;
+
+    int arg_type = _readByte();
+    int n = Math.min( _arrayCount(arg_type,_readInt32()), max );
+    if (n <= 0) return 0;
+
+    ByteBuffer bytes = data.buffer();
+    int p = position;
+    switch (arg_type)
+    {
+      case DATA_TYPE_INT32_ARRAY:
+        for (int i=0; i<n; ++i,p+=4) buffer[ offset+i ] = bytes.getInt( p );
+        break;
+      case DATA_TYPE_REAL32_ARRAY:
+        for (int i=0; i<n; ++i,p+=4) buffer[ offset+i ] = bytes.getFloat( p );
+        break;
+      case DATA_TYPE_REAL64_ARRAY:
+        for (int i=0; i<n; ++i,p+=8) buffer[ offset+i ] = bytes.getDouble( p );
+        break;
+    }
+    position = p;
+
+    return n;
+  }
+
+  public float[] getFloats( String key )
+  {
+    float[] result = new float[ getArrayCount(key) ];
+    getFloats( key, result, 0, result.length );
+    return result;
+  }
+
+  public int getFloats( String key, float[] buffer, int offset, int max )
+  {
+    if ( !_seek(key) ) return 0;
+
+    int arg_type = _readByte();
+    int n = Math.min( _arrayCount(arg_type,_readInt32()), max );
+    if (n <= 0) return 0;
+
+    ByteBuffer bytes = data.buffer();
+    int p = position;
+    switch (arg_type)
+    {
+      case DATA_TYPE_INT32_ARRAY:
+        for (int i=0; i<n; ++i,p+=4) buffer[ offset+i ] = bytes.getInt( p );
+        break;
+      case DATA_TYPE_REAL32_ARRAY:
+        for (int i=0; i<n; ++i,p+=4) buffer[ offset+i ] = bytes.getFloat( p );
+        break;
+      case DATA_TYPE_REAL64_ARRAY:
+        for (int i=0; i<n; ++i,p+=8) buffer[ offset+i ] = (float) bytes.getDouble( p );
+        break;
+    }
+    position = p;
+
+    return n;
+  }
+
   public int getInt( String key )
   {
     if ( !_seek(key) ) return 0;
@@ -293,6 +454,40 @@ public class PlasmacoreMessage
     return 0;
   }
 
+  public int[] getInts( String key )
+  {
+    int[] result = new int[ getArrayCount(key) ];
+    getInts( key, result, 0, result.length );
+    return result;
+  }
+
+  public int getInts( String key, int[] buffer, int offset, int max )
+  {
+    if ( !_seek(key) ) return 0;
+
+    int arg_type = _readByte();
+    int n = Math.min( _arrayCount(arg_type,_readInt32()), max );
+    if (n <= 0) return 0;
+
+    ByteBuffer bytes = data.buffer();
+    int p = position;
+    switch (arg_type)
+    {
+      case DATA_TYPE_INT32_ARRAY:
+        for (int i=0; i<n; ++i,p+=4) buffer[ offset+i ] = bytes.getInt( p );
+        break;
+      case DATA_TYPE_REAL32_ARRAY:
+        for (int i=0; i<n; ++i,p+=4) buffer[ offset+i ] = (int) bytes.getFloat( p );
+        break;
+      case DATA_TYPE_REAL64_ARRAY:
+        for (int i=0; i<n; ++i,p+=8) buffer[ offset+i ] = (int) bytes.getDouble( p );
+        break;
+    }
+    position = p;
+
+    return n;
+  }
+
   public long getLong( String key )
   {
     if ( !_seek(key) ) return 0;
@@ -312,6 +507,18 @@ public class PlasmacoreMessage
     return 0;
   }
 
+  public CharSequence getCharSequence( String key )
+  {
+    // Returns string arguments without allocating. The result is a view that is
+    // only valid until the next read from this message.
+    if ( !_seek(key) ) return "";
+
+    int arg_type = _readByte();
+    if (arg_type == DATA_TYPE_BYTE) return _readString();
+
+    return getString( key );
+  }
+
   public String getString( String key )
   {
     if ( !_seek(key) ) return "";
@@ -319,6 +526,7 @@ public class PlasmacoreMessage
     int arg_type = _readByte();
     if (arg_type == DATA_TYPE_BYTE)
     {
+      if (internStrings) return consolidate( _readString() );
       return _readString().toString();
     }
 
@@ -340,19 +548,34 @@ public class PlasmacoreMessage
     Plasmacore.post( this );
   }
 
+  public void post( int lane )
+  {
+    Plasmacore.post( this, lane );
+  }
+
+  public void postRSVP( PlasmacoreMessageListener callback )
+  {
+    Plasmacore.postRSVP( this, callback );
+  }
+
+  public PlasmacoreReply postRSVP()
+  {
+    return Plasmacore.postRSVP( this );
+  }
+
   public void print()
   {
-    for (int i=0; i<data.count; ++i)
+    for (int i=dataOffset; i<data.count; ++i)
     {
-      if (i > 0) System.out.print( " " );
+      if (i > dataOffset) System.out.print( " " );
       int b = ((int) data.bytes[i]) & 255;
       System.out.print( "0123456789ABCDEF".charAt(b>>4) );
       System.out.print( "0123456789ABCDEF".charAt(b&15) );
     }
     System.out.println();
-    for (int i=0; i<data.count; ++i)
+    for (int i=dataOffset; i<data.count; ++i)
     {
-      if (i > 0) System.out.print( " " );
+      if (i > dataOffset) System.out.print( " " );
       System.out.print( " " );
       int b = ((int) data.bytes[i]) & 255;
       if (b >= ' ' && b <= 126) System.out.print( (char) b );
@@ -365,17 +588,29 @@ public class PlasmacoreMessage
   {
     if (isRecycled) return;
 
-    synchronized (mutex)
+    if (_reply != null)
     {
-      if (_reply != null)
-      {
-        _reply.recycle();
-        _reply = null;
-      }
-      isRecycled = true;
-      data.limitCapacity( 1024 );
-      messagePool.add( this );
+      _reply.recycle();
+      _reply = null;
     }
+    isRecycled = true;
+    argIndexCount = 0;
+    _releaseView();
+    data.limitCapacity( MessagePool.maxRetainedCapacity );
+    MessagePool.release( this );
+  }
+
+  public int typeID()
+  {
+    // Dense integer ID of this message's type, or -1 if no listener has ever
+    // been set for it; see MessageTypes.
+    int id = _typeID;
+    if (id < 0)
+    {
+      id = MessageTypes.find( type );
+      if (id >= 0) _typeID = id;
+    }
+    return id;
   }
 
   public PlasmacoreMessage reply()
@@ -386,10 +621,19 @@ public class PlasmacoreMessage
 
   public PlasmacoreMessage reserve( int additional )
   {
+    if (isView) detach();
     data.reserve( additional );
     return this;
   }
 
+  public PlasmacoreMessage retain()
+  {
+    // Call from a listener to keep a message beyond the dispatch call; the
+    // dispatcher detaches retained views and does not recycle them.
+    isRetained = true;
+    return this;
+  }
+
   public void send()
   {
     Plasmacore.send( this );
@@ -402,7 +646,7 @@ public class PlasmacoreMessage
 
   public PlasmacoreMessage set( String key, byte value )
   {
-    _writeString( key );
+    _writeName( key );
     _writeByte( DATA_TYPE_BYTE )._writeInt32( 1 );
     _writeByte( value );
     return this;
@@ -415,34 +659,109 @@ public class PlasmacoreMessage
 
   public PlasmacoreMessage set( String key, byte[] bytes, int offset, int n )
   {
-    _writeString( key );
+    _writeName( key );
     _writeByte( DATA_TYPE_BYTE )._writeInt32( n );
-    for (int i=0; i<n; ++i)
+    data.add( bytes, offset, n );
+    return this;
+  }
+
+  public PlasmacoreMessage set( String key, ByteBuffer bytes )
+  {
+    // Writes the buffer's remaining bytes without changing its position.
+    int n = bytes.remaining();
+    _writeName( key );
+    _writeByte( DATA_TYPE_BYTE )._writeInt32( n );
+    if (bytes.hasArray())
     {
-      _writeByte( bytes[i+offset] );
+      data.add( bytes.array(), bytes.arrayOffset() + bytes.position(), n );
+    }
+    else
+    {
+      data.reserve( n );
+      int startPosition = bytes.position();
+      bytes.get( data.bytes, data.count, n );
+      bytes.position( startPosition );
+      data.count += n;
     }
     return this;
   }
 
   public PlasmacoreMessage set( String key, double value )
   {
-    _writeString( key );
+    _writeName( key );
     _writeByte( DATA_TYPE_REAL64 )._writeInt32( 8 );
     _writeReal64( value );
     return this;
   }
 
+  public PlasmacoreMessage set( String key, double[] values )
+  {
+    return set( key, values, 0, values.length );
+  }
+
+  public PlasmacoreMessage set( String key, double[] values, int offset, int n )
+  {
+    _writeName( key );
+    _writeByte( DATA_TYPE_REAL64_ARRAY )._writeInt32( n*8 );
+    ByteBuffer bytes = data.reserve( n*8 ).buffer();
+    int p = data.count;
+    for (int i=0; i<n; ++i,p+=8)
+    {
+      bytes.putLong( p, Double.doubleToLongBits(values[offset+i]) );
+    }
+    data.count = p;
+    return this;
+  }
+
+  public PlasmacoreMessage set( String key, float[] values )
+  {
+    return set( key, values, 0, values.length );
+  }
+
+  public PlasmacoreMessage set( String key, float[] values, int offset, int n )
+  {
+    _writeName( key );
+    _writeByte( DATA_TYPE_REAL32_ARRAY )._writeInt32( n*4 );
+    ByteBuffer bytes = data.reserve( n*4 ).buffer();
+    int p = data.count;
+    for (int i=0; i<n; ++i,p+=4)
+    {
+      bytes.putInt( p, Float.floatToIntBits(values[offset+i]) );
+    }
+    data.count = p;
+    return this;
+  }
+
   public PlasmacoreMessage set( String key, int value )
   {
-    _writeString( key );
+    _writeName( key );
     _writeByte( DATA_TYPE_INT32 )._writeInt32( 4 );
     _writeInt32( value );
     return this;
   }
 
+  public PlasmacoreMessage set( String key, int[] values )
+  {
+    return set( key, values, 0, values.length );
+  }
+
+  public PlasmacoreMessage set( String key, int[] values, int offset, int n )
+  {
+    _writeName( key );
+    _writeByte( DATA_TYPE_INT32_ARRAY )._writeInt32( n*4 );
+    ByteBuffer bytes = data.reserve( n*4 ).buffer();
+    int p = data.count;
+    for (int i=0; i<n; ++i,p+=4)
+    {
+      bytes.putInt( p, values[offset+i] );
+    }
+    data.count = p;
+    return this;
+  }
+
   public PlasmacoreMessage set( String key, long value )
   {
-    _writeString( key );
+    _writeName( key );
     _writeByte( DATA_TYPE_INT64 )._writeInt32( 8 );
     _writeInt64( value );
     return this;
@@ -450,12 +769,34 @@ public class PlasmacoreMessage
 
   public PlasmacoreMessage set( String key, String value )
   {
-    _writeString( key );
+    _writeName( key );
     _writeByte( DATA_TYPE_BYTE );
     _writeString( value );
     return this;
   }
 
+  public int _arrayCount( int arg_type, int arg_size )
+  {
+    arg_size = _availableBytes( arg_size );
+    switch (arg_type)
+    {
+      case DATA_TYPE_INT32_ARRAY:
+      case DATA_TYPE_REAL32_ARRAY:
+        return arg_size / 4;
+      case DATA_TYPE_REAL64_ARRAY:
+        return arg_size / 8;
+    }
+    return 0;
+  }
+
+  public int _availableBytes( int n )
+  {
+    // Clamps an argument size to the bytes remaining after the read position.
+    int remaining = data.count - position;
+    if (n > remaining) return Math.max( remaining, 0 );
+    return Math.max( n, 0 );
+  }
+
   public int _readByte()
   {
     if (position >= data.count) return 0;
@@ -464,16 +805,26 @@ public class PlasmacoreMessage
 
   public int _readInt32()
   {
-    int result = _readByte() << 24;
-    result |= _readByte() << 16;
-    result |= _readByte() << 8;
-    return result | _readByte();
+    int p = position;
+    if (p + 4 > data.count)
+    {
+      if (p < data.count) position = data.count;
+      return 0;
+    }
+    position = p + 4;
+    return data.buffer().getInt( p );
   }
 
   public long _readInt64()
   {
-    long result = ((long)_readInt32()) << 32;
-    return result | (((long)_readInt32()) & 0xFFFFffffL);
+    int p = position;
+    if (p + 8 > data.count)
+    {
+      if (p < data.count) position = data.count;
+      return 0;
+    }
+    position = p + 8;
+    return data.buffer().getLong( p );
   }
 
   public double _readReal64()
@@ -484,45 +835,122 @@ public class PlasmacoreMessage
   public ComparableStringBuilder _readString()
   {
     builder.clear();
-    int n = _readInt32();
-    builder.reserve( n );
-    while (--n >= 0)
-    {
-      builder.writeUTF8Byte( _readByte() );
-    }
+    int n = _availableBytes( _readInt32() );
+    builder.decodeUTF8( data.bytes, position, n );
+    position += n;
     return builder;
   }
 
-  public boolean _seek( String key )
+  public void _indexArgs()
   {
-    position = argStartPosition;
+    // Indexes any arguments written or loaded since the last call. Leaves the
+    // read position at the end of the data.
+    if (argIndexPosition < argStartPosition) argIndexPosition = argStartPosition;
+    position = argIndexPosition;
     while (position < data.count)
     {
-      if (_readString().equals(key)) return true;  // leaves read position set correctly
+      String name = _readName();
+      int valuePosition = position;
       _readByte(); // skip type
       int skipSize = _readInt32(); // skip data to advance to next property
       position += skipSize;
+      if (position > data.count)
+      {
+        // Malformed; leave the remainder unindexed
+        argIndexPosition = data.count;
+        break;
+      }
+
+      int i = argIndexCount;
+      if (i == argNames.length)
+      {
+        argNames = Arrays.copyOf( argNames, i*2 );
+        argPositions = Arrays.copyOf( argPositions, i*2 );
+      }
+      argNames[ i ] = name;
+      argPositions[ i ] = valuePosition;
+      ++argIndexCount;
+      argIndexPosition = position;
+    }
+  }
+
+  public void _readType()
+  {
+    // Like _readName() but also picks up the type ID cached with the name.
+    int n = _readInt32();
+    if (n < 0)
+    {
+      type = dictionary.name( -n );
+      _typeID = dictionary.typeID( -n );
+      return;
+    }
+    n = _availableBytes( n );
+    UTF8Interner.Entry entry = utf8Interner.entry( data.bytes, position, n );
+    position += n;
+    type = entry.text;
+    _typeID = entry.typeID();
+  }
+
+  public String _readName()
+  {
+    // Reads a type or arg name as its canonical String. Names already seen are
+    // resolved from their UTF-8 bytes without decoding.
+    int n = _readInt32();
+    if (n < 0) return dictionary.name( -n );
+    n = _availableBytes( n );
+    String name = utf8Interner.intern( data.bytes, position, n );
+    position += n;
+    return name;
+  }
+
+  public boolean _seek( String key )
+  {
+    // Leaves the read position on the arg_data_type byte of the first argument
+    // named 'key'.
+    if (argIndexPosition < data.count || argIndexPosition < argStartPosition) _indexArgs();
+
+    String[] names = argNames;
+    int n = argIndexCount;
+    for (int i=0; i<n; ++i)
+    {
+      String name = names[ i ];
+      if (name == key || (name.hashCode() == key.hashCode() && name.equals(key)))
+      {
+        position = argPositions[ i ];
+        return true;
+      }
     }
     return false; // never found it
   }
 
+  public void _releaseView()
+  {
+    if ( !isView ) return;
+    isView = false;
+    viewData.bytes = null;
+    viewData.count = 0;
+    data = ownedData;
+    dataOffset = 0;
+  }
+
   public PlasmacoreMessage _writeByte( int value )
   {
+    if (isView) detach();
     data.add( value );
     return this;
   }
 
   public PlasmacoreMessage _writeInt32( int value )
   {
+    if (isView) detach();
     data.writeInt32( value );
     return this;
   }
 
   public PlasmacoreMessage _writeInt64( long value )
   {
-    reserve( 8 );
-    _writeInt32( (int) (value >> 32) );
-    _writeInt32( (int) value );
+    if (isView) detach();
+    data.writeInt64( value );
     return this;
   }
 
@@ -532,16 +960,22 @@ public class PlasmacoreMessage
     return this;
   }
 
+  public PlasmacoreMessage _writeName( String name )
+  {
+    // Writes a type or arg name, using its dictionary ID once negotiated.
+    int id = dictionary.id( name );
+    if (id != 0) return _writeInt32( -id );
+    return _writeString( name );
+  }
+
   public PlasmacoreMessage _writeString( String value )
   {
-    utf8Writer.clear().write( value );
-    int n = utf8Writer.count;
-    byte[] bytes = utf8Writer.utf8;
-    _writeInt32( n );
-    for (int i=0; i<n; ++i)
-    {
-      _writeByte( bytes[i] );
-    }
+    // Encodes in place after a placeholder count that is patched afterward.
+    if (isView) detach();
+    int countPosition = data.count;
+    data.writeInt32( 0 );
+    int n = utf8Writer.write( value, data );
+    data.buffer().putInt( countPosition, n );
     return this;
   }
 
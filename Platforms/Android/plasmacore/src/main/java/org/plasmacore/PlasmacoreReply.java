@@ -0,0 +1,90 @@
+package org.plasmacore;
+
+import java.util.concurrent.*;
+
+public class PlasmacoreReply implements Future<PlasmacoreMessage>, PlasmacoreMessageListener
+{
+  // - Future returned by Plasmacore.postRSVP(m) and PlasmacoreMessage.postRSVP().
+  // - Completed with the reply when it arrives in Plasmacore.sendPostedMessages()
+  //   on the GL thread, so never wait on it from the GL thread itself.
+  // - The reply is retained; recycle() it once you are done with it.
+  // - As with any Future, a get(timeout) that times out leaves the RSVP
+  //   pending. cancel() it, or use getOrCancel(), when a late reply is no
+  //   longer wanted so its callback doesn't stay registered.
+
+  // PROPERTIES
+  public int messageID;
+  PlasmacoreMessage reply;
+  boolean isDone;
+  boolean isCancelled;
+
+  // METHODS
+  public PlasmacoreReply( int messageID )
+  {
+    this.messageID = messageID;
+  }
+
+  synchronized public boolean cancel( boolean mayInterruptIfRunning )
+  {
+    if (isDone) return false;
+    Plasmacore.cancelRSVP( messageID );
+    isCancelled = true;
+    isDone = true;
+    notifyAll();
+    return true;
+  }
+
+  synchronized public PlasmacoreMessage get() throws InterruptedException, ExecutionException
+  {
+    while ( !isDone ) wait();
+    if (isCancelled) throw new CancellationException();
+    return reply;
+  }
+
+  synchronized public PlasmacoreMessage get( long timeout, TimeUnit unit )
+    throws InterruptedException, ExecutionException, TimeoutException
+  {
+    long deadline = System.nanoTime() + unit.toNanos( timeout );
+    while ( !isDone )
+    {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) throw new TimeoutException();
+      TimeUnit.NANOSECONDS.timedWait( this, remaining );
+    }
+    if (isCancelled) throw new CancellationException();
+    return reply;
+  }
+
+  synchronized public PlasmacoreMessage getOrCancel( long timeout, TimeUnit unit )
+    throws InterruptedException, ExecutionException, TimeoutException
+  {
+    // Like get(timeout) but cancels the RSVP when it times out.
+    try
+    {
+      return get( timeout, unit );
+    }
+    catch (TimeoutException err)
+    {
+      cancel( false );
+      throw err;
+    }
+  }
+
+  synchronized public boolean isCancelled()
+  {
+    return isCancelled;
+  }
+
+  synchronized public boolean isDone()
+  {
+    return isDone;
+  }
+
+  synchronized public void on( PlasmacoreMessage m )
+  {
+    if (isDone) return;
+    reply = m.retain().detach();  // waiting threads may read it before dispatch returns
+    isDone = true;
+    notifyAll();
+  }
+}
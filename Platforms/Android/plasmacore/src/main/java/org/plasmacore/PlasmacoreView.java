@@ -14,6 +14,8 @@ import javax.microedition.khronos.egl.EGLContext;
 import javax.microedition.khronos.egl.EGLDisplay;
 import javax.microedition.khronos.opengles.GL10;
 
+import java.util.Arrays;
+
 public class PlasmacoreView extends GLSurfaceView
 {
   // Uses GL context-preserving technique from:
@@ -23,6 +25,12 @@ public class PlasmacoreView extends GLSurfaceView
     POINTER_PRESS   = 1,
     POINTER_RELEASE = 2;
 
+  // Pointer move coalescing modes
+  final static public int
+    COALESCE_NONE    = 0,  // full fidelity: post every sample as it arrives
+    COALESCE_HISTORY = 1,  // keep the latest 'pointerHistory' moves per pointer per frame
+    COALESCE_LATEST  = 2;  // keep only the latest move per pointer per frame
+
   final  static public int EGL_CONTEXT_CLIENT_VERSION_VALUE = 2;
   static public EGLContext glContext = null;
 
@@ -36,10 +44,14 @@ public class PlasmacoreView extends GLSurfaceView
     public Activity activity;
     public String   displayName = "Main";
     public boolean  translucent;
+    public int      pointerCoalescing = COALESCE_LATEST;
+    public int      pointerHistory    = 4;
 
     public Builder( Activity activity )              { this.activity = activity; }
     public Builder setName( String name )            { this.displayName = name; return this; }
     public Builder setTranslucent( boolean setting ) { this.translucent = setting; return this; }
+    public Builder setPointerCoalescing( int mode )  { this.pointerCoalescing = mode; return this; }
+    public Builder setPointerHistory( int count )    { this.pointerHistory = count; return this; }
 
     public PlasmacoreView build() { return new PlasmacoreView(this); }
   }
@@ -49,6 +61,9 @@ public class PlasmacoreView extends GLSurfaceView
   public String                  displayName;
   public PlasmacoreView.Renderer renderer;
   public boolean isChangingConfiguration;
+  public int     pointerCoalescing;
+  public int     pointerHistory;
+  public PointerEvents pointerEvents = new PointerEvents();
 
   // METHODS
   public PlasmacoreView( Builder args )
@@ -56,6 +71,8 @@ public class PlasmacoreView extends GLSurfaceView
     super( args.activity );
     this.activity = args.activity;
     this.displayName = args.displayName;
+    this.pointerCoalescing = args.pointerCoalescing;
+    this.pointerHistory = args.pointerHistory;
 
     if (args.translucent)
     {
@@ -162,41 +179,76 @@ public class PlasmacoreView extends GLSurfaceView
       case MotionEvent.ACTION_DOWN: type = POINTER_PRESS; break;
       default: type = POINTER_RELEASE;  // UP and CANCEL both count as release for Plasmacore (CANCEL sends extra cancelled:true)
     }
+    boolean isCancel = (e.getActionMasked() == MotionEvent.ACTION_CANCEL);
+    int moveLimit = pointerMoveLimit();
 
     int n = e.getPointerCount();
 
     int historyCount = e.getHistorySize();
-    if (historyCount > 0)
+    int firstHistory = 0;
+    if (type == POINTER_MOVE && moveLimit > 0)
+    {
+      // Older samples would only be coalesced away
+      firstHistory = Math.max( 0, historyCount+1-moveLimit );
+    }
+
+    if (historyCount > firstHistory)
     {
       long msDelta = System.currentTimeMillis() - e.getEventTime();
-      for (int h=0; h<historyCount; ++h)
+      for (int h=firstHistory; h<historyCount; ++h)
       {
+        double timestamp = (e.getHistoricalEventTime(h)+msDelta)/1000.0;
         for (int i=0; i<n; ++i)
         {
-          PlasmacoreMessage m = PlasmacoreMessage.create( "Display.on_pointer_event", (e.getHistoricalEventTime(h)+msDelta)/1000.0 );
-          m.set( "display_name", displayName );
-          m.set( "type", type );
-          m.set( "x", e.getHistoricalX(i,h) );
-          m.set( "y", e.getHistoricalY(i,h) );
-          if (e.getActionMasked() == MotionEvent.ACTION_CANCEL) m.set( "cancelled", true );
-          m.post();
+          queuePointerEvent( type, e.getPointerId(i), e.getHistoricalX(i,h), e.getHistoricalY(i,h), timestamp, isCancel, moveLimit );
         }
       }
     }
 
+    double timestamp = System.currentTimeMillis() / 1000.0;
     for (int i=0; i<n; ++i)
     {
-      PlasmacoreMessage m = PlasmacoreMessage.create( "Display.on_pointer_event" );
-      m.set( "display_name", displayName );
-      m.set( "type", type );
-      m.set( "x", e.getX(i) );
-      m.set( "y", e.getY(i) );
-      m.post();
+      queuePointerEvent( type, e.getPointerId(i), e.getX(i), e.getY(i), timestamp, false, moveLimit );
     }
 
     return true;
   }
 
+  public void flushPointerEvents()
+  {
+    // Posts pointer events held for coalescing; called at the start of each frame.
+    pointerEvents.post( this );
+  }
+
+  int pointerMoveLimit()
+  {
+    // Moves kept per pointer per frame, or 0 to post every sample immediately.
+    switch (pointerCoalescing)
+    {
+      case COALESCE_HISTORY: return Math.max( 1, pointerHistory );
+      case COALESCE_LATEST:  return 1;
+      default:               return 0;
+    }
+  }
+
+  void postPointerEvent( int type, int id, float x, float y, double timestamp, boolean isCancel )
+  {
+    PlasmacoreMessage m = PlasmacoreMessage.create( "Display.on_pointer_event", timestamp );
+    m.set( "display_name", displayName );
+    m.set( "type", type );
+    m.set( "index", id );
+    m.set( "x", x );
+    m.set( "y", y );
+    if (isCancel) m.set( "cancelled", true );
+    m.post();
+  }
+
+  void queuePointerEvent( int type, int id, float x, float y, double timestamp, boolean isCancel, int moveLimit )
+  {
+    if (moveLimit == 0) postPointerEvent( type, id, x, y, timestamp, isCancel );
+    else                pointerEvents.add( type, id, x, y, timestamp, isCancel, moveLimit );
+  }
+
   public void postKeyEvent( int syscode, int keycode, int unicode, boolean isPress, boolean isRepeat )
   {
     {
@@ -229,6 +281,7 @@ public class PlasmacoreView extends GLSurfaceView
 
     public void onDrawFrame( GL10 gl )
     {
+      flushPointerEvents();
       Plasmacore.sendPostedMessages();
 
       PlasmacoreMessage m = PlasmacoreMessage.create( "Display.on_render" );
@@ -258,4 +311,129 @@ public class PlasmacoreView extends GLSurfaceView
       Plasmacore.sendPostedMessages();
     }
   }
+
+  static public class PointerEvents
+  {
+    // - Pointer events held until the next frame so that moves can be coalesced.
+    // - Filled on the UI thread and posted from the GL thread, always in arrival
+    //   order, so press/release/cancel stay in sequence with the moves around them.
+    // - A move only replaces earlier moves by the same pointer since the last
+    //   non-move event.
+    // - At most maxCount events are held, e.g. while frames are paused: past
+    //   that, superseded moves go first and then the oldest events.
+    // - post() swaps the events into a second buffer and builds the messages
+    //   outside the lock, so the UI thread never waits on message encoding.
+    public int maxCount = 256;
+
+    int[]     types      = new int[ 16 ];
+    int[]     ids        = new int[ 16 ];
+    float[]   xs         = new float[ 16 ];
+    float[]   ys         = new float[ 16 ];
+    double[]  timestamps = new double[ 16 ];
+    boolean[] cancels    = new boolean[ 16 ];
+    int       count;
+    PointerEvents posting;  // GL thread only
+
+    synchronized public void add( int type, int id, float x, float y, double timestamp, boolean isCancel, int moveLimit )
+    {
+      if (type == POINTER_MOVE)
+      {
+        int moves = 0;
+        int oldest = -1;
+        for (int i=count; --i>=0; )
+        {
+          if (types[i] != POINTER_MOVE) break;
+          if (ids[i] == id)
+          {
+            ++moves;
+            oldest = i;
+          }
+        }
+        if (moves >= moveLimit) remove( oldest );
+      }
+
+      if (count >= maxCount) trim();
+      if (count == types.length) reserve( count * 2 );
+      types[ count ]      = type;
+      ids[ count ]        = id;
+      xs[ count ]         = x;
+      ys[ count ]         = y;
+      timestamps[ count ] = timestamp;
+      cancels[ count ]    = isCancel;
+      ++count;
+    }
+
+    synchronized public int count()
+    {
+      return count;
+    }
+
+    public void post( PlasmacoreView view )
+    {
+      if (posting == null) posting = new PointerEvents();
+      PointerEvents events = posting;
+      synchronized (this)
+      {
+        if (count == 0) return;
+        swap( events );
+      }
+
+      for (int i=0; i<events.count; ++i)
+      {
+        view.postPointerEvent( events.types[i], events.ids[i], events.xs[i], events.ys[i], events.timestamps[i], events.cancels[i] );
+      }
+      events.count = 0;
+    }
+
+    void remove( int index )
+    {
+      int n = count - (index+1);
+      System.arraycopy( types,      index+1, types,      index, n );
+      System.arraycopy( ids,        index+1, ids,        index, n );
+      System.arraycopy( xs,         index+1, xs,         index, n );
+      System.arraycopy( ys,         index+1, ys,         index, n );
+      System.arraycopy( timestamps, index+1, timestamps, index, n );
+      System.arraycopy( cancels,    index+1, cancels,    index, n );
+      --count;
+    }
+
+    void swap( PointerEvents other )
+    {
+      int[]     swapTypes      = types;      types      = other.types;      other.types      = swapTypes;
+      int[]     swapIDs        = ids;        ids        = other.ids;        other.ids        = swapIDs;
+      float[]   swapXs         = xs;         xs         = other.xs;         other.xs         = swapXs;
+      float[]   swapYs         = ys;         ys         = other.ys;         other.ys         = swapYs;
+      double[]  swapTimestamps = timestamps; timestamps = other.timestamps; other.timestamps = swapTimestamps;
+      boolean[] swapCancels    = cancels;    cancels    = other.cancels;    other.cancels    = swapCancels;
+      int       swapCount      = count;      count      = other.count;      other.count      = swapCount;
+    }
+
+    void trim()
+    {
+      // Removes the oldest move that a later move of the same pointer replaces,
+      // or else the oldest event.
+      for (int i=0; i<count; ++i)
+      {
+        if (types[i] != POINTER_MOVE) continue;
+        for (int j=i+1; j<count; ++j)
+        {
+          if (ids[j] != ids[i]) continue;
+          if (types[j] != POINTER_MOVE) break;
+          remove( i );
+          return;
+        }
+      }
+      remove( 0 );
+    }
+
+    void reserve( int capacity )
+    {
+      types      = Arrays.copyOf( types, capacity );
+      ids        = Arrays.copyOf( ids, capacity );
+      xs         = Arrays.copyOf( xs, capacity );
+      ys         = Arrays.copyOf( ys, capacity );
+      timestamps = Arrays.copyOf( timestamps, capacity );
+      cancels    = Arrays.copyOf( cancels, capacity );
+    }
+  }
 }
@@ -0,0 +1,561 @@
+package org.plasmacore;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class PostQueue
+{
+  // - Collects posted messages from any number of threads without locking.
+  // - Each posting thread appends size-prefixed messages to its own staging
+  //   ByteList per lane. The list is handed back and forth through an
+  //   AtomicReference: the poster takes it with getAndSet(null) while
+  //   appending, and the single consumer (Plasmacore.sendPostedMessages) swaps
+  //   in an empty list with compareAndSet when draining. Neither side ever
+  //   waits - a list that is busy while draining is picked up on the next drain.
+  // - Lanes are drained in priority order: all input, then control, then bulk.
+  //   A lane with a nonzero byte budget stops once the budget is reached and
+  //   the rest spills to the next drain. At least one message per lane is
+  //   always taken so oversized messages can't stall a lane.
+  // - Messages posted by one thread to one lane stay in order; within a batch,
+  //   messages from different threads are grouped by thread.
+  // - Staged messages are capped by maxBytes and maxMessages. A post that
+  //   would exceed a cap follows its type's policy:
+  //     POLICY_BLOCK        wait up to blockTimeout ms for a drain, then admit it
+  //     POLICY_DROP_OLDEST  drop this thread's oldest messages of the same type
+  //                         in the lane
+  //     POLICY_DROP_NEWEST  drop the new message
+  //     POLICY_COALESCE     replace this thread's latest message in the lane with
+  //                         the same type and coalescing key if both may be
+  //                         dropped, or else admit the new message
+  //   The consumer thread never blocks, and a message is admitted when its
+  //   thread has nothing left to drop, so caps may be exceeded by a little.
+  // - The default policy is POLICY_DROP_NEWEST so that no thread, least of all
+  //   the UI thread, waits on a full queue; POLICY_BLOCK is opt-in per type
+  //   through setPolicy(). Input events coalesce instead (see below).
+  // - A type's Coalescer gives each message a coalescing key and says whether
+  //   it may be dropped; without one every message of the type has key 0 and
+  //   may be dropped. Pointer events are keyed by pointer index and only moves
+  //   may be dropped, so a move replaces the previous move of the same pointer
+  //   unless a press or release of that pointer came in between. Likewise a
+  //   key repeat replaces the previous repeat of the same key. Presses,
+  //   releases and text are never dropped.
+  // - Each thread's lane alternates between two lists of its own, so their
+  //   capacity follows that thread's use. A list halves, down to
+  //   targetCapacity, only once the lane's decaying peak use has fallen to a
+  //   quarter of its capacity; steady traffic never reallocates.
+  // - A thread's staging is dropped by drainTo() once the thread has died and
+  //   everything it posted has been drained.
+
+  // GLOBAL PROPERTIES
+  final static public int
+    LANE_INPUT   = 0,
+    LANE_CONTROL = 1,
+    LANE_BULK    = 2,
+    LANE_COUNT   = 3;
+
+  final static public int
+    POLICY_BLOCK       = 0,
+    POLICY_DROP_OLDEST = 1,
+    POLICY_DROP_NEWEST = 2,
+    POLICY_COALESCE    = 3;
+
+  static public interface Coalescer
+  {
+    boolean isDroppable( PlasmacoreMessage m );
+    int     keyOf( PlasmacoreMessage m );
+  }
+
+  static class Staging
+  {
+    final Thread owner = Thread.currentThread();
+    final AtomicReference<ByteList>[] lanes;
+    final ByteList[] spares;   // consumer only; swapped in for lanes[i] on drain
+    final ByteList[] spilled;  // consumer only; bytes left over from an earlier drain
+    final int[]      peaks;    // consumer only; decaying peak bytes staged per drain
+
+    @SuppressWarnings({"rawtypes","unchecked"})
+    Staging()
+    {
+      lanes = new AtomicReference[ LANE_COUNT ];
+      spares = new ByteList[ LANE_COUNT ];
+      spilled = new ByteList[ LANE_COUNT ];
+      peaks = new int[ LANE_COUNT ];
+      for (int i=0; i<LANE_COUNT; ++i)
+      {
+        lanes[i] = new AtomicReference<ByteList>( new ByteList(256) );
+        spares[i] = new ByteList( 256 );
+        spilled[i] = new ByteList( 0 );
+      }
+    }
+
+    boolean isFinished()
+    {
+      // True once the owner has died and nothing it posted is left to drain.
+      if (owner.isAlive()) return false;
+      for (int i=0; i<LANE_COUNT; ++i)
+      {
+        ByteList list = lanes[i].get();
+        if (list == null || list.count > 0 || spilled[i].count > 0) return false;
+      }
+      return true;
+    }
+  }
+
+  // PROPERTIES
+  public int[] laneBudgets = { 0, 0, 64*1024 };  // bytes per drain; 0 is unlimited
+  public int   maxBytes       = 4*1024*1024;
+  public int   maxMessages    = 32768;
+  public int   defaultPolicy  = POLICY_DROP_NEWEST;
+  public int   blockTimeout   = 100;   // ms, for POLICY_BLOCK
+  public int   targetCapacity = 4096;  // bytes each list shrinks back to
+
+  volatile HashMap<String,Integer> typeLanes    = new HashMap<String,Integer>();  // copy-on-write
+  volatile HashMap<String,Integer> typePolicies = new HashMap<String,Integer>();  // copy-on-write
+  volatile HashMap<String,Coalescer> typeCoalescers = new HashMap<String,Coalescer>();  // copy-on-write
+  volatile Staging[] stagings = new Staging[ 0 ];
+  volatile Thread consumer;
+  volatile int    waiting;
+
+  AtomicInteger stagedBytes       = new AtomicInteger();
+  AtomicInteger stagedMessages    = new AtomicInteger();
+  AtomicInteger highWaterBytes    = new AtomicInteger();
+  AtomicInteger highWaterMessages = new AtomicInteger();
+  AtomicLong    dropped           = new AtomicLong();
+  AtomicLong    blocked           = new AtomicLong();
+
+  final ThreadLocal<Staging> threadStaging = new ThreadLocal<Staging>()
+  {
+    protected Staging initialValue()
+    {
+      return register( new Staging() );
+    }
+  };
+
+  // METHODS
+  public PostQueue()
+  {
+    setLane( "Display.on_key_event", LANE_INPUT );
+    setLane( "Display.on_pointer_event", LANE_INPUT );
+    setLane( "Display.on_text_event", LANE_INPUT );
+    setPolicy( "Display.on_key_event", POLICY_COALESCE );
+    setPolicy( "Display.on_pointer_event", POLICY_COALESCE );
+    setPolicy( "Display.on_text_event", POLICY_COALESCE );
+    setCoalescer(
+        "Display.on_key_event",
+        new Coalescer()
+        {
+          public boolean isDroppable( PlasmacoreMessage m )
+          {
+            return m.getBoolean( "is_repeat" );
+          }
+
+          public int keyOf( PlasmacoreMessage m )
+          {
+            return m.getInt( "keycode" );
+          }
+        }
+    );
+    setCoalescer(
+        "Display.on_pointer_event",
+        new Coalescer()
+        {
+          public boolean isDroppable( PlasmacoreMessage m )
+          {
+            return (m.getInt("type") == PlasmacoreView.POINTER_MOVE);
+          }
+
+          public int keyOf( PlasmacoreMessage m )
+          {
+            return m.getInt( "index" );
+          }
+        }
+    );
+    setCoalescer(
+        "Display.on_text_event",
+        new Coalescer()
+        {
+          public boolean isDroppable( PlasmacoreMessage m )
+          {
+            return false;
+          }
+
+          public int keyOf( PlasmacoreMessage m )
+          {
+            return 0;
+          }
+        }
+    );
+  }
+
+  public boolean add( ByteList data, int lane, int policy )
+  {
+    return add( data.bytes, 0, data.count, lane, policy );
+  }
+
+  public boolean add( byte[] data, int offset, int n, int lane, int policy )
+  {
+    // Called by any thread. Returns false if the message was dropped.
+    int size = n + 4;
+    if (isFull(size))
+    {
+      switch (policy)
+      {
+        case POLICY_BLOCK:
+          _awaitSpace( size );
+          break;
+        case POLICY_DROP_NEWEST:
+          dropped.incrementAndGet();
+          return false;
+      }
+    }
+
+    AtomicReference<ByteList> staged = threadStaging.get().lanes[ lane ];
+    ByteList list = staged.getAndSet( null );
+
+    if (policy == POLICY_DROP_OLDEST && isFull(size))
+    {
+      _dropOldest( list, data, offset, n, size );
+    }
+    else if (policy == POLICY_COALESCE && isFull(size))
+    {
+      _coalesce( list, data, offset, n );
+    }
+
+    list.reserve( size );
+    list.writeInt32( n );
+    list.add( data, offset, n );
+    staged.set( list );
+
+    _raise( highWaterBytes, stagedBytes.addAndGet(size) );
+    _raise( highWaterMessages, stagedMessages.incrementAndGet() );
+    return true;
+  }
+
+  public long blocked()
+  {
+    // Number of posts that had to wait for space.
+    return blocked.get();
+  }
+
+  public long dropped()
+  {
+    return dropped.get();
+  }
+
+  public int highWaterBytes()
+  {
+    return highWaterBytes.get();
+  }
+
+  public int highWaterMessages()
+  {
+    return highWaterMessages.get();
+  }
+
+  public boolean isFull( int additionalBytes )
+  {
+    return (stagedBytes.get() + additionalBytes > maxBytes || stagedMessages.get() >= maxMessages);
+  }
+
+  public int policyOf( String type )
+  {
+    Integer policy = typePolicies.get( type );
+    return (policy == null) ? defaultPolicy : policy;
+  }
+
+  public void resetHighWater()
+  {
+    highWaterBytes.set( stagedBytes.get() );
+    highWaterMessages.set( stagedMessages.get() );
+  }
+
+  public int stagedBytes()
+  {
+    return stagedBytes.get();
+  }
+
+  public int stagedMessages()
+  {
+    return stagedMessages.get();
+  }
+
+  public int drainTo( SharedBuffer queue )
+  {
+    // Called by the consumer only. Appends staged messages to 'queue' lane by
+    // lane within each lane's budget and returns the number of bytes added.
+    consumer = Thread.currentThread();
+    int startCount = queue.count;
+    Staging[] stagings = this.stagings;
+    for (int lane=0; lane<LANE_COUNT; ++lane)
+    {
+      int budget = laneBudgets[ lane ];
+      if (budget <= 0) budget = Integer.MAX_VALUE;
+      int laneStart = queue.count;
+
+      for (Staging staging : stagings)
+      {
+        AtomicReference<ByteList> staged = staging.lanes[ lane ];
+        ByteList list = staged.get();
+        ByteList spilled = staging.spilled[ lane ];
+
+        // Peak use is sampled before draining and decays by 1/8 per drain
+        int used = spilled.count + ((list == null) ? 0 : list.count);
+        int peak = staging.peaks[ lane ];
+        peak = staging.peaks[ lane ] = Math.max( used, peak - peak/8 );
+        _shrink( staging.spares[lane], peak );
+
+        // Spilled bytes go first to keep each thread's messages in order
+        if (spilled.count > 0)
+        {
+          _drain( spilled, queue, laneStart, budget );
+          _shrink( spilled, peak );
+          if (spilled.count > 0) continue;
+        }
+
+        if (list == null || list.count == 0) continue;
+        if ( !staged.compareAndSet(list,staging.spares[lane]) ) continue;  // poster is appending
+
+        _drain( list, queue, laneStart, budget );
+        if (list.count > 0) spilled.add( list );
+        staging.spares[ lane ] = list.clear();
+      }
+    }
+
+    for (Staging staging : stagings)
+    {
+      if (staging.isFinished())
+      {
+        unregisterFinished();
+        break;
+      }
+    }
+
+    if (waiting > 0)
+    {
+      synchronized (this)
+      {
+        notifyAll();
+      }
+    }
+
+    return queue.count - startCount;
+  }
+
+  public int laneOf( String type )
+  {
+    Integer lane = typeLanes.get( type );
+    return (lane == null) ? LANE_CONTROL : lane;
+  }
+
+  public void setCoalescer( String type, Coalescer coalescer )
+  {
+    // Coalescing keys for messages of the given type under POLICY_COALESCE.
+    synchronized (this)
+    {
+      HashMap<String,Coalescer> newCoalescers = new HashMap<String,Coalescer>( typeCoalescers );
+      newCoalescers.put( PlasmacoreMessage.consolidate(type), coalescer );
+      typeCoalescers = newCoalescers;
+    }
+  }
+
+  public void setLane( String type, int lane )
+  {
+    // Messages of the given type are posted to 'lane' unless post() specifies one.
+    synchronized (this)
+    {
+      HashMap<String,Integer> newLanes = new HashMap<String,Integer>( typeLanes );
+      newLanes.put( PlasmacoreMessage.consolidate(type), lane );
+      typeLanes = newLanes;
+    }
+  }
+
+  public void setPolicy( String type, int policy )
+  {
+    // Overflow policy for messages of the given type; see POLICY_*.
+    synchronized (this)
+    {
+      HashMap<String,Integer> newPolicies = new HashMap<String,Integer>( typePolicies );
+      newPolicies.put( PlasmacoreMessage.consolidate(type), policy );
+      typePolicies = newPolicies;
+    }
+  }
+
+  synchronized Staging register( Staging staging )
+  {
+    Staging[] newStagings = Arrays.copyOf( stagings, stagings.length + 1 );
+    newStagings[ stagings.length ] = staging;
+    stagings = newStagings;
+    return staging;
+  }
+
+  synchronized void unregisterFinished()
+  {
+    ArrayList<Staging> live = new ArrayList<Staging>( stagings.length );
+    for (Staging staging : stagings)
+    {
+      if ( !staging.isFinished() ) live.add( staging );
+    }
+    stagings = live.toArray( new Staging[live.size()] );
+  }
+
+  void _drain( ByteList list, SharedBuffer queue, int laneStart, int budget )
+  {
+    // Moves whole messages from the front of 'list' into 'queue' until the
+    // lane's budget is reached, then shifts any remainder to the front.
+    int available = budget - (queue.count - laneStart);
+    int n = 0;
+    int messages = 0;
+    while (n < list.count)
+    {
+      int size = 4 + list.readInt32( n );
+      if (size > available && (n > 0 || queue.count > laneStart)) break;
+      n += size;
+      available -= size;
+      ++messages;
+    }
+    if (n == 0) return;
+
+    stagedBytes.addAndGet( -n );
+    stagedMessages.addAndGet( -messages );
+
+    queue.add( list.bytes, 0, n );
+    int remaining = list.count - n;
+    if (remaining > 0) System.arraycopy( list.bytes, n, list.bytes, 0, remaining );
+    list.count = remaining;
+  }
+
+  void _awaitSpace( int size )
+  {
+    // The consumer would wait on itself, so it doesn't block.
+    if (Thread.currentThread() == consumer) return;
+
+    blocked.incrementAndGet();
+    long deadline = System.currentTimeMillis() + blockTimeout;
+    synchronized (this)
+    {
+      ++waiting;
+      try
+      {
+        while (isFull(size))
+        {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) return;
+          wait( remaining );
+        }
+      }
+      catch (InterruptedException err)
+      {
+        Thread.currentThread().interrupt();
+      }
+      finally
+      {
+        --waiting;
+      }
+    }
+  }
+
+  static void _raise( AtomicInteger highWater, int value )
+  {
+    for (;;)
+    {
+      int current = highWater.get();
+      if (value <= current || highWater.compareAndSet(current,value)) return;
+    }
+  }
+
+  void _remove( ByteList list, int index )
+  {
+    // Drops the staged message starting at 'index'.
+    int size = 4 + list.readInt32( index );
+    int end = index + size;
+    System.arraycopy( list.bytes, end, list.bytes, index, list.count - end );
+    list.count -= size;
+    stagedBytes.addAndGet( -size );
+    stagedMessages.decrementAndGet();
+    dropped.incrementAndGet();
+  }
+
+  void _coalesce( ByteList list, byte[] data, int offset, int n )
+  {
+    // Makes room for a new message by dropping the latest staged message with
+    // the same type and coalescing key, provided both may be dropped.
+    int typeSize = _typeSize( data, offset, n );
+    PlasmacoreMessage m = PlasmacoreMessage.createView( data, offset, n );
+    Coalescer coalescer = typeCoalescers.get( m.type );
+    boolean isDroppable = (coalescer == null || coalescer.isDroppable(m));
+    int key = (coalescer == null) ? 0 : coalescer.keyOf( m );
+    m.recycle();
+    if ( !isDroppable ) return;
+
+    int latest = -1;
+    boolean latestIsDroppable = false;
+    for (int i=0; i<list.count; i+=4+list.readInt32(i))
+    {
+      int size = list.readInt32( i );
+      if ( !_isSameType(list.bytes,i+4,size,data,offset,typeSize) ) continue;
+
+      if (coalescer == null)
+      {
+        latest = i;
+        latestIsDroppable = true;
+        continue;
+      }
+
+      PlasmacoreMessage staged = PlasmacoreMessage.createView( list.bytes, i+4, size );
+      if (coalescer.keyOf(staged) == key)
+      {
+        latest = i;
+        latestIsDroppable = coalescer.isDroppable( staged );
+      }
+      staged.recycle();
+    }
+
+    if (latestIsDroppable) _remove( list, latest );
+  }
+
+  void _dropOldest( ByteList list, byte[] data, int offset, int n, int size )
+  {
+    // Drops the oldest staged messages with the same type as the new message
+    // until 'size' more bytes fit; other types are left alone.
+    int typeSize = _typeSize( data, offset, n );
+    int i = 0;
+    while (i < list.count && isFull(size))
+    {
+      int staged = list.readInt32( i );
+      if (_isSameType(list.bytes,i+4,staged,data,offset,typeSize)) _remove( list, i );
+      else                                                          i += 4 + staged;
+    }
+  }
+
+  static boolean _isSameType( byte[] staged, int stagedOffset, int n, byte[] data, int offset, int typeSize )
+  {
+    // Compares encoded type names; see _typeSize().
+    if (_typeSize(staged,stagedOffset,n) != typeSize) return false;
+    for (int j=typeSize; --j>=0; )
+    {
+      if (staged[stagedOffset+j] != data[offset+j]) return false;
+    }
+    return true;
+  }
+
+  ByteList _shrink( ByteList list, int peak )
+  {
+    // Halves 'list' once 'peak' would fit in a quarter of it. Growing happens
+    // at full capacity, so a list that was just halved has room to spare.
+    int capacity = list.capacity();
+    if (capacity > targetCapacity && Math.max(peak,list.count) <= capacity/4)
+    {
+      list.limitCapacity( Math.max(targetCapacity,capacity/2) );
+    }
+    return list;
+  }
+
+  static int _typeSize( byte[] data, int offset, int n )
+  {
+    // Bytes used by the encoded type name at the start of a message: an Int32
+    // count followed by UTF-8, or just the Int32 for a dictionary ID.
+    if (n < 4) return n;
+    int count = ((data[offset]&255)<<24) | ((data[offset+1]&255)<<16) | ((data[offset+2]&255)<<8) | (data[offset+3]&255);
+    return Math.min( n, 4 + Math.max(0,count) );
+  }
+}
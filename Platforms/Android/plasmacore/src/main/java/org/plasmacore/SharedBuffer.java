@@ -0,0 +1,165 @@
+package org.plasmacore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class SharedBuffer
+{
+  // - Growable byte list stored in a direct ByteBuffer that the native layer
+  //   reads and writes in place through GetDirectBufferAddress().
+  // - The first HEADER_SIZE bytes hold Int32s in native byte order:
+  //     [0] count     # payload bytes in use
+  //     [4] capacity  # payload bytes available
+  //     [8] required  # payload bytes the native layer needed but could not write
+  //   Payload starts at HEADER_SIZE and uses the usual big-endian message format.
+  // - Java keeps 'count' in a field; flushHeader() publishes it before a native
+  //   call and loadHeader() picks up the native side's changes afterward.
+  // - On Android direct buffers are backed by a non-movable array, so messages
+  //   can be decoded in place through array()/arrayOffset(). Elsewhere
+  //   copyTo() provides a heap copy.
+
+  // GLOBAL PROPERTIES
+  final static int HEADER_SIZE = 16;
+
+  // PROPERTIES
+  public ByteBuffer buffer;  // big-endian; replaced when the capacity grows
+  public int        count;
+  public int        required;
+  int               peak;    // decaying peak of 'count'; see shrink()
+  ByteBuffer        header;  // native-order view of 'buffer'
+
+  // METHODS
+  public SharedBuffer( int initialCapacity )
+  {
+    allocate( initialCapacity );
+  }
+
+  public SharedBuffer add( byte[] bytes, int offset, int n )
+  {
+    reserve( n );
+    int startPosition = buffer.position();
+    buffer.position( HEADER_SIZE + count );
+    buffer.put( bytes, offset, n );
+    buffer.position( startPosition );
+    count += n;
+    return this;
+  }
+
+  public SharedBuffer add( ByteList list )
+  {
+    return add( list.bytes, 0, list.count );
+  }
+
+  public byte[] array()
+  {
+    return buffer.hasArray() ? buffer.array() : null;
+  }
+
+  public int arrayOffset()
+  {
+    // Index of payload byte 0 within array().
+    return buffer.arrayOffset() + HEADER_SIZE;
+  }
+
+  public int capacity()
+  {
+    return buffer.capacity() - HEADER_SIZE;
+  }
+
+  public SharedBuffer clear()
+  {
+    count = 0;
+    required = 0;
+    return this;
+  }
+
+  public ByteList copyTo( ByteList list )
+  {
+    list.clear().reserve( count );
+    int startPosition = buffer.position();
+    buffer.position( HEADER_SIZE );
+    buffer.get( list.bytes, 0, count );
+    buffer.position( startPosition );
+    list.count = count;
+    return list;
+  }
+
+  public SharedBuffer flushHeader()
+  {
+    header.putInt( 0, count );
+    header.putInt( 4, capacity() );
+    header.putInt( 8, 0 );
+    return this;
+  }
+
+  public SharedBuffer loadHeader()
+  {
+    count = Math.max( 0, Math.min(header.getInt(0),capacity()) );
+    required = header.getInt( 8 );
+    if (count > peak) peak = count;
+    return this;
+  }
+
+  public int readInt32( int index )
+  {
+    if (index < 0 || index + 4 > count) return 0;
+    return buffer.getInt( HEADER_SIZE + index );
+  }
+
+  public SharedBuffer reserve( int additional )
+  {
+    int requiredCapacity = count + additional;
+    if (requiredCapacity > peak) peak = requiredCapacity;
+    int capacity = capacity();
+    if (requiredCapacity <= capacity) return this;
+
+    int newCapacity = capacity * 2;
+    if (requiredCapacity > newCapacity) newCapacity = requiredCapacity;
+
+    ByteBuffer oldBuffer = buffer;
+    allocate( newCapacity );
+    oldBuffer.limit( HEADER_SIZE + count ).position( HEADER_SIZE );
+    buffer.position( HEADER_SIZE );
+    buffer.put( oldBuffer );
+    buffer.position( 0 );
+    return this;
+  }
+
+  public SharedBuffer shrink( int targetCapacity )
+  {
+    // Call once per use cycle. Halves the capacity, down to targetCapacity,
+    // once the peak use since the buffer was last shrunk - decaying by 1/8
+    // per call - fits in a quarter of it. Steady use never reallocates and a
+    // spike gives its memory back gradually.
+    int capacity = capacity();
+    int used = Math.max( peak, count );
+    peak = used - used/8;
+    if (capacity <= targetCapacity || used > capacity/4) return this;
+
+    ByteBuffer oldBuffer = buffer;
+    allocate( Math.max(targetCapacity,capacity/2) );
+    if (count > 0)
+    {
+      oldBuffer.limit( HEADER_SIZE + count ).position( HEADER_SIZE );
+      buffer.position( HEADER_SIZE );
+      buffer.put( oldBuffer );
+      buffer.position( 0 );
+    }
+    return this;
+  }
+
+  public SharedBuffer writeInt32( int value )
+  {
+    reserve( 4 );
+    buffer.putInt( HEADER_SIZE + count, value );
+    count += 4;
+    return this;
+  }
+
+  void allocate( int capacity )
+  {
+    buffer = ByteBuffer.allocateDirect( HEADER_SIZE + Math.max(capacity,0) ).order( ByteOrder.BIG_ENDIAN );
+    header = buffer.duplicate().order( ByteOrder.nativeOrder() );
+    flushHeader();
+  }
+}
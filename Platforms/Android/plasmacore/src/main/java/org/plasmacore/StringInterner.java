@@ -0,0 +1,184 @@
+package org.plasmacore;
+
+import java.util.*;
+
+public class StringInterner
+{
+  // - Maps text to a canonical String; used by PlasmacoreMessage.consolidate().
+  // - Open addressing with a short linear probe window. Entries are replaced in
+  //   place but never removed, so a null slot always ends a probe.
+  // - Lookups read the table without locking and, when probing with a
+  //   ComparableStringBuilder, allocate nothing on a hit. Strings are immutable
+  //   so a racy read sees either null (falls through to the locked insert) or a
+  //   complete String.
+  // - At most maxSize entries are kept; once full, inserting evicts an entry in
+  //   the new text's probe window. Evicted text simply interns to a new String
+  //   the next time it is seen, unless it was pin()ned, in which case the same
+  //   String comes back.
+  // - Hits are counted per thread (see HitCounter) so lookups share no
+  //   written field; misses are counted under the lock.
+
+  // GLOBAL PROPERTIES
+  final static int PROBE_LIMIT = 8;
+
+  // PROPERTIES
+  volatile String[] table;
+  int        maxSize;
+  int        count;
+  int        nextVictim;
+  long       misses;
+  final HitCounter hits = new HitCounter();
+  volatile HashMap<String,String> pinned = new HashMap<String,String>();  // copy-on-write
+
+  // METHODS
+  public StringInterner( int maxSize )
+  {
+    setMaxSize( maxSize );
+  }
+
+  public long hits()
+  {
+    return hits.count();
+  }
+
+  public double hitRate()
+  {
+    long hits = hits();
+    long total = hits + misses();
+    return (total == 0) ? 0 : (double) hits / total;
+  }
+
+  public String intern( String text )
+  {
+    String[] table = this.table;
+    int mask = table.length - 1;
+    int hash = text.hashCode();
+    int index = mix( hash ) & mask;
+    for (int i=0; i<PROBE_LIMIT; ++i)
+    {
+      String existing = table[ (index+i) & mask ];
+      if (existing == null) break;
+      if (existing.hashCode() == hash && existing.equals(text))
+      {
+        hits.increment();
+        return existing;
+      }
+    }
+    return insert( text, text );
+  }
+
+  String intern( ComparableStringBuilder builder )
+  {
+    String[] table = this.table;
+    int mask = table.length - 1;
+    int hash = builder.hash;
+    int index = mix( hash ) & mask;
+    for (int i=0; i<PROBE_LIMIT; ++i)
+    {
+      String existing = table[ (index+i) & mask ];
+      if (existing == null) break;
+      if (builder.equals(existing))
+      {
+        hits.increment();
+        return existing;
+      }
+    }
+    return insert( builder, null );
+  }
+
+  public int maxSize()
+  {
+    return maxSize;
+  }
+
+  synchronized public long misses()
+  {
+    return misses;
+  }
+
+  synchronized public String pin( String text )
+  {
+    // Interns 'text' and keeps the result canonical for the life of the interner.
+    String canonical = intern( text );
+    if ( !pinned.containsKey(canonical) )
+    {
+      HashMap<String,String> newPinned = new HashMap<String,String>( pinned );
+      newPinned.put( canonical, canonical );
+      pinned = newPinned;
+    }
+    return canonical;
+  }
+
+  synchronized public void setMaxSize( int maxSize )
+  {
+    // Rebuilds the table, keeping as many existing entries as fit.
+    this.maxSize = Math.max( 1, maxSize );
+    int capacity = 16;
+    while (capacity < this.maxSize * 2) capacity <<= 1;
+
+    String[] oldTable = table;
+    table = new String[ capacity ];
+    count = 0;
+    if (oldTable != null)
+    {
+      long misses = this.misses;
+      for (String text : oldTable)
+      {
+        if (text != null && count < this.maxSize) insert( text, text );
+      }
+      this.misses = misses;
+    }
+  }
+
+  synchronized public int size()
+  {
+    return count;
+  }
+
+  synchronized String insert( CharSequence text, String canonical )
+  {
+    String[] table = this.table;
+    int mask = table.length - 1;
+    int index = mix( text.hashCode() ) & mask;
+
+    // Another thread may have inserted it since the unlocked probe
+    int emptySlot = -1;
+    for (int i=0; i<PROBE_LIMIT; ++i)
+    {
+      int slot = (index+i) & mask;
+      String existing = table[ slot ];
+      if (existing == null)
+      {
+        emptySlot = slot;
+        break;
+      }
+      if (existing.hashCode() == text.hashCode() && existing.contentEquals(text)) return existing;
+    }
+
+    ++misses;
+    if (canonical == null) canonical = text.toString();
+    String pinnedText = pinned.get( canonical );
+    if (pinnedText != null) canonical = pinnedText;
+
+    if (emptySlot >= 0 && count < maxSize)
+    {
+      table[ emptySlot ] = canonical;
+      ++count;
+    }
+    else if (emptySlot != index)
+    {
+      // Evict an occupied slot in the window (slots before emptySlot, or the
+      // whole window when it is full).
+      int window = (emptySlot >= 0) ? ((emptySlot - index) & mask) : PROBE_LIMIT;
+      table[ (index + ((nextVictim++ & 0x7FFFffff) % window)) & mask ] = canonical;
+    }
+    // else the table is at maxSize and the window is empty; leave it uncached
+
+    return canonical;
+  }
+
+  static int mix( int hash )
+  {
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -0,0 +1,201 @@
+package org.plasmacore;
+
+import java.util.*;
+
+public class UTF8Interner
+{
+  // - Maps raw UTF-8 name bytes straight to the canonical String that
+  //   StringInterner holds for the decoded text.
+  // - Hashing and comparison run over the bytes in place, so resolving a name
+  //   that has been seen before decodes no characters and allocates nothing.
+  // - Same table scheme as StringInterner: lock-free probes over immutable
+  //   entries, synchronized inserts and in-place eviction beyond maxSize.
+  // - Hits are counted per thread (see HitCounter), misses under the lock.
+
+  // GLOBAL PROPERTIES
+  final static int PROBE_LIMIT = 8;
+
+  static class Entry
+  {
+    final byte[] utf8;
+    final int    hash;
+    final String text;
+    int typeID = -1;  // MessageTypes ID once the type has one
+
+    Entry( byte[] utf8, int hash, String text )
+    {
+      this.utf8 = utf8;
+      this.hash = hash;
+      this.text = text;
+    }
+
+    int typeID()
+    {
+      int id = typeID;
+      if (id < 0)
+      {
+        id = MessageTypes.find( text );
+        if (id >= 0) typeID = id;
+      }
+      return id;
+    }
+  }
+
+  // PROPERTIES
+  final StringInterner strings;
+  volatile Entry[] table;
+  int        maxSize;
+  int        count;
+  int        nextVictim;
+  long       misses;
+  final HitCounter hits = new HitCounter();
+  ComparableStringBuilder builder = new ComparableStringBuilder();  // guarded by 'this'
+
+  // METHODS
+  public UTF8Interner( StringInterner strings, int maxSize )
+  {
+    this.strings = strings;
+    setMaxSize( maxSize );
+  }
+
+  public long hits()
+  {
+    return hits.count();
+  }
+
+  public double hitRate()
+  {
+    long hits = hits();
+    long total = hits + misses();
+    return (total == 0) ? 0 : (double) hits / total;
+  }
+
+  public String intern( byte[] src, int offset, int n )
+  {
+    return entry( src, offset, n ).text;
+  }
+
+  Entry entry( byte[] src, int offset, int n )
+  {
+    int hash = hash( src, offset, n );
+    Entry[] table = this.table;
+    int mask = table.length - 1;
+    int index = StringInterner.mix( hash ) & mask;
+    for (int i=0; i<PROBE_LIMIT; ++i)
+    {
+      Entry entry = table[ (index+i) & mask ];
+      if (entry == null) break;
+      if (entry.hash == hash && matches(entry.utf8,src,offset,n))
+      {
+        hits.increment();
+        return entry;
+      }
+    }
+    return insert( src, offset, n, hash );
+  }
+
+  public int maxSize()
+  {
+    return maxSize;
+  }
+
+  synchronized public long misses()
+  {
+    return misses;
+  }
+
+  synchronized public void setMaxSize( int maxSize )
+  {
+    // Rebuilds the table, keeping as many existing entries as fit.
+    this.maxSize = Math.max( 1, maxSize );
+    int capacity = 16;
+    while (capacity < this.maxSize * 2) capacity <<= 1;
+
+    Entry[] oldTable = table;
+    Entry[] newTable = new Entry[ capacity ];
+    count = 0;
+    if (oldTable != null)
+    {
+      int mask = capacity - 1;
+      for (Entry entry : oldTable)
+      {
+        if (entry == null || count >= this.maxSize) continue;
+        int index = StringInterner.mix( entry.hash ) & mask;
+        for (int i=0; i<PROBE_LIMIT; ++i)
+        {
+          int slot = (index+i) & mask;
+          if (newTable[slot] == null)
+          {
+            newTable[ slot ] = entry;
+            ++count;
+            break;
+          }
+        }
+      }
+    }
+    table = newTable;
+  }
+
+  synchronized public int size()
+  {
+    return count;
+  }
+
+  synchronized Entry insert( byte[] src, int offset, int n, int hash )
+  {
+    Entry[] table = this.table;
+    int mask = table.length - 1;
+    int index = StringInterner.mix( hash ) & mask;
+
+    // Another thread may have inserted it since the unlocked probe
+    int emptySlot = -1;
+    for (int i=0; i<PROBE_LIMIT; ++i)
+    {
+      int slot = (index+i) & mask;
+      Entry entry = table[ slot ];
+      if (entry == null)
+      {
+        emptySlot = slot;
+        break;
+      }
+      if (entry.hash == hash && matches(entry.utf8,src,offset,n)) return entry;
+    }
+
+    ++misses;
+    String text = strings.intern( builder.clear().decodeUTF8(src,offset,n) );
+    Entry entry = new Entry( Arrays.copyOfRange(src,offset,offset+n), hash, text );
+
+    if (emptySlot >= 0 && count < maxSize)
+    {
+      table[ emptySlot ] = entry;
+      ++count;
+    }
+    else if (emptySlot != index)
+    {
+      int window = (emptySlot >= 0) ? ((emptySlot - index) & mask) : PROBE_LIMIT;
+      table[ (index + ((nextVictim++ & 0x7FFFffff) % window)) & mask ] = entry;
+    }
+
+    return entry;
+  }
+
+  static int hash( byte[] src, int offset, int n )
+  {
+    int hash = 0;
+    for (int i=offset+n; --i>=offset; )
+    {
+      hash = ((hash << 5) - hash) + src[i];
+    }
+    return hash;
+  }
+
+  static boolean matches( byte[] utf8, byte[] src, int offset, int n )
+  {
+    if (utf8.length != n) return false;
+    for (int i=n; --i>=0; )
+    {
+      if (utf8[i] != src[offset+i]) return false;
+    }
+    return true;
+  }
+}
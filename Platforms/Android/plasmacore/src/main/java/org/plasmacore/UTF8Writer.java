@@ -53,6 +53,73 @@ class UTF8Writer
     }
   }
 
+  public int write( String value, ByteList target )
+  {
+    // Appends the UTF-8 encoding of 'value' directly to 'target' and returns
+    // the number of bytes written. Unpaired surrogates are skipped and clear
+    // isValid.
+    isValid = true;
+    int n = value.length();
+    int start = target.count;
+    target.reserve( n );
+    byte[] bytes = target.bytes;
+    int pos = start;
+
+    // ASCII run
+    int i = 0;
+    while (i < n)
+    {
+      char ch = value.charAt( i );
+      if (ch >= 0x80) break;
+      bytes[ pos++ ] = (byte) ch;
+      ++i;
+    }
+    if (i == n)
+    {
+      target.count = pos;
+      return pos - start;
+    }
+
+    // Remainder: at most 3 bytes per UTF-16 char (a surrogate pair is 4 bytes for 2 chars)
+    target.count = pos;
+    target.reserve( (n-i) * 3 );
+    bytes = target.bytes;
+    while (i < n)
+    {
+      int ch = value.charAt( i++ );
+      if (ch < 0x80)
+      {
+        bytes[ pos++ ] = (byte) ch;
+      }
+      else if (ch < 0x800)
+      {
+        bytes[ pos++ ] = (byte) (0xC0 | (ch >> 6));
+        bytes[ pos++ ] = (byte) (0x80 | (ch & 0x3F));
+      }
+      else if ((ch & 0xF800) != 0xD800)
+      {
+        bytes[ pos++ ] = (byte) (0xE0 | (ch >> 12));
+        bytes[ pos++ ] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+        bytes[ pos++ ] = (byte) (0x80 | (ch & 0x3F));
+      }
+      else if (ch <= 0xDBFF && i < n && (value.charAt(i) & 0xFC00) == 0xDC00)
+      {
+        int code = 0x10000 + (((ch - 0xD800) << 10) | (value.charAt(i++) - 0xDC00));
+        bytes[ pos++ ] = (byte) (0xF0 | (code >> 18));
+        bytes[ pos++ ] = (byte) (0x80 | ((code >> 12) & 0x3F));
+        bytes[ pos++ ] = (byte) (0x80 | ((code >> 6)  & 0x3F));
+        bytes[ pos++ ] = (byte) (0x80 | (code & 0x3F));
+      }
+      else
+      {
+        isValid = false;
+      }
+    }
+
+    target.count = pos;
+    return pos - start;
+  }
+
   public void writeUTF16Char( int value )
   {
     if (continuationCount == 0)